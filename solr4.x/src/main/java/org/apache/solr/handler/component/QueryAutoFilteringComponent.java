@@ -26,8 +26,9 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
 import org.apache.lucene.util.CharsRefBuilder;
 import org.apache.lucene.index.AtomicReader;
-import org.apache.lucene.search.FieldCache;
-import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.index.Term;
 
@@ -69,7 +70,7 @@ import java.nio.charset.StandardCharsets;
 
 /**
  * Creates filter or boost queries from freetext queries based on pattern matches with terms in stored String fields. Uses
- * the FieldCache (UninvertingIndex) to build a map of term to search field. This map is then used to parse the
+ * the terms dictionary (or doc values) of these fields to build a map of term to search field. This map is then used to parse the
  * query to detect phrases that map to specific field values. These field/value pairs can then be used to generate 
  * a filter query or a boost query if recall needs to be preserved.
  *
@@ -703,7 +704,7 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
   private void buildFieldMap( ResponseBuilder rb ) throws IOException {
     Log.debug( "buildFieldMap" );
     SolrIndexSearcher searcher = rb.req.getSearcher();
-    // build a synonym map from the SortedDocValues -
+    // build a synonym map from the unique terms of each String field -
     // for each field value: lower case, stemmed, lookup synonyms from synonyms.txt - map to fieldValue
     SynonymMap.Builder fieldBuilder = new SynonymMap.Builder( true );
     SynonymMap.Builder termBuilder = new SynonymMap.Builder( true );
@@ -713,12 +714,10 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     for (String searchField : searchFields ) {
       Log.debug( "adding searchField " + searchField );
       CharsRef fieldChars = new CharsRef( searchField );
-      SortedSetDocValues sdv = FieldCache.DEFAULT.getDocTermOrds( searcher.getAtomicReader( ), searchField );
-      if (sdv == null) continue;
-      Log.debug( "got SortedSetDocValues for " + searchField );
-      TermsEnum te = sdv.termsEnum();
-      while (te.next() != null) {
-        BytesRef term = te.term();
+      TermsEnum te = getTermsEnum( searcher, searchField );
+      if (te == null) continue;
+      BytesRef term;
+      while ((term = te.next()) != null) {
         String fieldValue = term.utf8ToString( );
         addTerm ( fieldChars, fieldValue, fieldBuilder, termBuilder );
       }
@@ -730,6 +729,29 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     termMap = termBuilder.build( );
   }
     
+  // Only the unique values are needed: read them from the terms dictionary, or from the doc values if the field is
+  // not indexed. FieldCache.getDocTermOrds would build (and keep) doc -> ord structures sized to maxDoc for nothing.
+  private TermsEnum getTermsEnum( SolrIndexSearcher searcher, String fieldName ) throws IOException {
+    Terms terms = MultiFields.getTerms( searcher.getIndexReader( ), fieldName );
+    if (terms != null) {
+      return terms.iterator( null );
+    }
+      
+    AtomicReader reader = searcher.getAtomicReader( );
+    FieldInfo fieldInfo = reader.getFieldInfos( ).fieldInfo( fieldName );
+    if (fieldInfo == null || !fieldInfo.hasDocValues( )) return null;
+      
+    switch (fieldInfo.getDocValuesType( )) {
+      case SORTED:
+        return reader.getSortedDocValues( fieldName ).termsEnum( );
+      case SORTED_SET:
+        return reader.getSortedSetDocValues( fieldName ).termsEnum( );
+      default:
+        Log.debug( "no terms for " + fieldName );
+        return null;
+    }
+  }
+    
   // TODO: Filter this by the configuration fields ...
   private ArrayList<String> getStringFields( SolrIndexSearcher searcher ) {
     IndexSchema schema = searcher.getSchema();
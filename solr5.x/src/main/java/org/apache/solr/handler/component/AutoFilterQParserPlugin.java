@@ -0,0 +1,54 @@
+package org.apache.solr.handler.component;
+
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * Hands the query that a QueryAutoFilteringComponent built for the request to the QueryComponent, so it is not
+ * written out as a query string and parsed again. The component sets q to {!autofilter} and puts the query in the
+ * request context; its filters go to the ResponseBuilder directly.
+ *
+ * Without a query from the component (e.g. when the request was not rewritten), the query string after the local
+ * params is parsed with the lucene parser, an empty one matches all documents.
+ *
+ * solrconfig.xml:
+ * <pre>
+ *   &lt;queryParser name="autofilter" class="org.apache.solr.handler.component.AutoFilterQParserPlugin" /&gt;
+ *
+ *   &lt;searchComponent name="autofilter" class="org.apache.solr.handler.component.QueryAutoFilteringComponent" &gt;
+ *     &lt;str name="nativeQueryParser"&gt;autofilter&lt;/str&gt;
+ *   &lt;/searchComponent&gt;
+ * </pre>
+ */
+public class AutoFilterQParserPlugin extends QParserPlugin {
+
+  public static final String NAME = "autofilter";
+
+  // request context key of the query built by the component
+  public static final String QUERY = "autofilter.query";
+
+  @Override
+  public void init( NamedList args ) {  }
+
+  @Override
+  public QParser createParser( String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req ) {
+    return new QParser( qstr, localParams, params, req ) {
+      @Override
+      public Query parse( ) throws SyntaxError {
+        Query query = (Query)req.getContext( ).get( QUERY );
+        if (query != null) return query;
+
+        if (qstr == null || qstr.trim( ).length( ) == 0) {
+          return new MatchAllDocsQuery( );
+        }
+        return subQuery( qstr, "lucene" ).getQuery( );
+      }
+    };
+  }
+}
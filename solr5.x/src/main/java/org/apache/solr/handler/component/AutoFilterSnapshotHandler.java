@@ -0,0 +1,72 @@
+package org.apache.solr.handler.component;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+
+/**
+ * Builder side of the field map replication: returns the current field map snapshot of a QueryAutoFilteringComponent
+ * in the format it saves its snapshots in, so that the other coordinators of the collection pull it instead of each
+ * building the same maps.
+ *
+ * Parameters: snapshotVersion - id of the snapshot the caller has (optional), config - configuration fingerprint of
+ * the caller's component. The snapshot is only sent if it differs from the caller's and was built with the same
+ * configuration.
+ *
+ * Response: builder - id of the component, so a core can tell it is asking itself, config - its configuration
+ * fingerprint, snapshotVersion - id of its current snapshot (none if it has no complete one), snapshot - the bytes.
+ *
+ * solrconfig.xml (on every core - any core can become the builder):
+ * <pre>
+ *   &lt;requestHandler name="/autofilterSnapshot" class="org.apache.solr.handler.component.AutoFilterSnapshotHandler" &gt;
+ *     &lt;str name="component"&gt;autofilter&lt;/str&gt;
+ *   &lt;/requestHandler&gt;
+ * </pre>
+ */
+public class AutoFilterSnapshotHandler extends RequestHandlerBase {
+
+  public static final String VERSION = "snapshotVersion";
+  public static final String CONFIG = "config";
+
+  public static final String BUILDER = "builder";
+  public static final String SNAPSHOT = "snapshot";
+
+  private String componentName = "autofilter";
+
+  @Override
+  public void init( NamedList args ) {
+    super.init( args );
+    String componentName = (String)args.get( "component" );
+    if (componentName != null) {
+      this.componentName = componentName;
+    }
+  }
+
+  @Override
+  public void handleRequestBody( SolrQueryRequest req, SolrQueryResponse rsp ) throws Exception {
+    SearchComponent component = req.getCore( ).getSearchComponent( componentName );
+    if (!(component instanceof QueryAutoFilteringComponent)) {
+      throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, componentName + " is not a QueryAutoFilteringComponent" );
+    }
+    QueryAutoFilteringComponent autofilter = (QueryAutoFilteringComponent)component;
+    rsp.add( BUILDER, autofilter.getBuilderId( ) );
+    rsp.add( CONFIG, autofilter.getSnapshotConfiguration( ) );
+
+    QueryAutoFilteringComponent.ServedSnapshot served = autofilter.getServedSnapshot( );
+    if (served == null) return;
+
+    rsp.add( VERSION, served.id );
+    SolrParams params = req.getParams( );
+    if (!served.id.equals( params.get( VERSION ) ) && autofilter.getSnapshotConfiguration( ).equals( params.get( CONFIG ) )) {
+      rsp.add( SNAPSHOT, served.bytes );
+    }
+  }
+
+  @Override
+  public String getDescription( ) {
+    return "Returns the field map snapshot of a QueryAutoFilteringComponent";
+  }
+}
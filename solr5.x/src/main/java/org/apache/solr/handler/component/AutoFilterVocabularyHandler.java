@@ -0,0 +1,114 @@
+package org.apache.solr.handler.component;
+
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.StringHelper;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Shard side of the distributed field map build: returns the sorted values of a String field of this shard, one page
+ * at a time, in a compact form that the QueryAutoFilteringComponent of the coordinator reads with little decoding.
+ *
+ * Parameters: field - the field, lower - return the values after this one (optional), limit - max values to return.
+ * Without a field, only the index version is returned.
+ *
+ * Response: version - index version of the searcher, count - number of values, values - the UTF-8 bytes of the values
+ * in index order, front coded: for each value a vInt length of the prefix shared with the previous value, a vInt
+ * length of the rest and the rest.
+ *
+ * solrconfig.xml (on every shard):
+ * <pre>
+ *   &lt;requestHandler name="/autofilterVocabulary" class="org.apache.solr.handler.component.AutoFilterVocabularyHandler" /&gt;
+ * </pre>
+ */
+public class AutoFilterVocabularyHandler extends RequestHandlerBase {
+
+  public static final String FIELD = "field";
+  public static final String LOWER = "lower";
+  public static final String LIMIT = "limit";
+
+  public static final String VERSION = "version";
+  public static final String COUNT = "count";
+  public static final String VALUES = "values";
+
+  @Override
+  public void handleRequestBody( SolrQueryRequest req, SolrQueryResponse rsp ) throws Exception {
+    SolrParams params = req.getParams( );
+    SolrIndexSearcher searcher = req.getSearcher( );
+    rsp.add( VERSION, searcher.getIndexReader( ).getVersion( ) );
+
+    String fieldName = params.get( FIELD );
+    if (fieldName == null) return;
+
+    int limit = params.getInt( LIMIT, Integer.MAX_VALUE );
+    if (limit < 1) {
+      throw new SolrException( SolrException.ErrorCode.BAD_REQUEST, LIMIT + " must be at least 1" );
+    }
+
+    // the merged terms of all segments - the composite reader caches the merged doc values
+    TermsEnum te = QueryAutoFilteringComponent.getTermsEnum( searcher.getLeafReader( ), fieldName );
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream( );
+    int count = 0;
+    if (te != null) {
+      String lower = params.get( LOWER );
+      BytesRef term;
+      if (lower == null) {
+        term = te.next( );
+      }
+      else {
+        BytesRef lowerBytes = new BytesRef( lower );
+        TermsEnum.SeekStatus status = te.seekCeil( lowerBytes );
+        term = (status == TermsEnum.SeekStatus.END) ? null
+             : (status == TermsEnum.SeekStatus.FOUND) ? te.next( ) : te.term( );
+      }
+
+      OutputStreamDataOutput out = new OutputStreamDataOutput( bytes );
+      BytesRefBuilder previous = new BytesRefBuilder( );
+      for (; term != null && count < limit; term = te.next( )) {
+        int prefix = StringHelper.bytesDifference( previous.get( ), term );
+        out.writeVInt( prefix );
+        out.writeVInt( term.length - prefix );
+        out.writeBytes( term.bytes, term.offset + prefix, term.length - prefix );
+        previous.copyBytes( term );
+        ++count;
+      }
+    }
+
+    rsp.add( COUNT, count );
+    rsp.add( VALUES, bytes.toByteArray( ) );
+  }
+
+  /**
+   * Adds the count front coded values to the list.
+   */
+  static void decodeValues( byte[] values, int count, List<String> into ) throws IOException {
+    ByteArrayDataInput in = new ByteArrayDataInput( values );
+    BytesRefBuilder value = new BytesRefBuilder( );
+    for (int i = 0; i < count; i++) {
+      int prefix = in.readVInt( );
+      int suffix = in.readVInt( );
+      value.setLength( prefix );
+      value.grow( prefix + suffix );
+      in.readBytes( value.bytes( ), prefix, suffix );
+      value.setLength( prefix + suffix );
+      into.add( value.get( ).utf8ToString( ) );
+    }
+  }
+
+  @Override
+  public String getDescription( ) {
+    return "Returns the values of a String field for the QueryAutoFilteringComponent";
+  }
+}
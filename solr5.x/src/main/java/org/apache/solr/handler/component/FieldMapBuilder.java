@@ -0,0 +1,456 @@
+package org.apache.solr.handler.component;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.BytesRefIterator;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.Counter;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.OfflineSorter;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+import org.apache.lucene.util.fst.Util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds the FieldValueMap (search term -> (field name, indexed value) pairs) of the QueryAutoFilteringComponent.
+ * The pairs of a search term are kept in the order they were added, without duplicates. The entries are not kept
+ * in a HashMap of CharsRefs:
+ *
+ * Each entry is encoded as one byte record (input term, writer, sequence number, field ord, value ord) as soon as it
+ * is added. The records are kept in buffers of bounded total size. If more records come in, the writer that adds
+ * them spills its records to a temp file, sorted with the OfflineSorter when the writer is finished. The sorted
+ * records of all writers are then merged into the FST Builder. Terms with the same pairs share one pair list.
+ *
+ * Entries can be added from several threads, each with its own FieldWriter (e.g. one per field). The records of
+ * earlier writers sort first, and the field and value ords of each writer are mapped to the ords of the map in writer
+ * order, so the map is the same as when all entries are added on one thread, writer after writer.
+ */
+class FieldMapBuilder implements Closeable {
+
+  private static final Logger Log = LoggerFactory.getLogger( FieldMapBuilder.class );
+
+  // separator, writer, sequence number, field ord, value ord. The separator sorts a term before its extensions, the
+  // writer and the sequence number keep the entries of a term in the order they were added.
+  private static final int SUFFIX_LENGTH = 1 + 4 + 8 + 4 + 4;
+
+  private final long ramBufferBytes;
+  private final int threads;
+  private final AtomicLong bufferedBytes = new AtomicLong( );   // records in the buffers of all writers
+
+  private final ArrayList<FieldWriter> writers = new ArrayList<FieldWriter>( );
+  private FieldWriter defaultWriter;
+
+  private final BytesRefHash fieldWords = new BytesRefHash( );
+  private final BytesRefHash valueWords = new BytesRefHash( );
+
+  private final HashMap<IntsRef,Integer> pairListOrds = new HashMap<IntsRef,Integer>( );
+  private final IntsRefBuilder pairLists = new IntsRefBuilder( );
+  private final IntsRefBuilder pairListOffsets = new IntsRefBuilder( );
+
+  private FieldValueMap fieldValueMap;
+
+  FieldMapBuilder( long ramBufferBytes ) {
+    this( ramBufferBytes, 1 );
+  }
+
+  /**
+   * threads is the number of writers that add entries at the same time - each offline sort gets its share of
+   * ramBufferBytes.
+   */
+  FieldMapBuilder( long ramBufferBytes, int threads ) {
+    this.ramBufferBytes = ramBufferBytes;
+    this.threads = threads;
+    pairListOffsets.append( 0 );
+  }
+
+  /**
+   * A writer for the entries of one thread. Writers must be created in order on one thread.
+   */
+  FieldWriter newWriter( ) {
+    FieldWriter writer = new FieldWriter( writers.size( ) );
+    writers.add( writer );
+    return writer;
+  }
+
+  /**
+   * Maps input to the (fieldName, value) pair, with the writer of the calling thread.
+   */
+  void add( CharsRef input, CharsRef fieldName, CharsRef value ) throws IOException {
+    if (defaultWriter == null) {
+      defaultWriter = newWriter( );
+    }
+    defaultWriter.add( input, fieldName, value );
+  }
+
+  /**
+   * Compiles the FST from the sorted records of all writers.
+   */
+  void build( ) throws IOException {
+    Builder<Object> fstBuilder = new Builder<Object>( FST.INPUT_TYPE.BYTE4, NoOutputs.getSingleton( ) );
+
+    int[][] fieldOrds = new int[ writers.size( ) ][];
+    int[][] valueOrds = new int[ writers.size( ) ][];
+    PriorityQueue<RecordCursor> queue = new PriorityQueue<RecordCursor>( Math.max( 1, writers.size( ) ) );
+    boolean sortedOffline = false;
+    for (FieldWriter writer : writers ) {
+      writer.finish( );
+      fieldOrds[writer.pos] = addWords( fieldWords, writer.fieldWords );
+      valueOrds[writer.pos] = addWords( valueWords, writer.valueWords );
+      RecordCursor cursor = new RecordCursor( writer.getSortedRecords( ) );
+      if (cursor.next( )) {
+        queue.add( cursor );
+      }
+      sortedOffline |= writer.sortedFile != null;
+    }
+
+    BytesRefBuilder currentTerm = new BytesRefBuilder( );
+    CharsRefBuilder termChars = new CharsRefBuilder( );
+    IntsRefBuilder termInts = new IntsRefBuilder( );
+    int[] pairs = new int[ 8 ];
+    int nPairs = 0;
+    int nTerms = 0;
+    long nRecords = 0;
+
+    while (!queue.isEmpty( )) {
+      RecordCursor cursor = queue.poll( );
+      BytesRef rec = cursor.record;
+      ++nRecords;
+      int termLength = rec.length - SUFFIX_LENGTH;
+      if (nTerms == 0 || !sameTerm( currentTerm.get( ), rec, termLength )) {
+        if (nTerms > 0) {
+          addTerm( currentTerm.get( ), termChars, termInts, fstBuilder, pairs, nPairs );
+        }
+        currentTerm.copyBytes( rec.bytes, rec.offset, termLength );
+        nPairs = 0;
+        ++nTerms;
+      }
+
+      int pos = rec.offset + termLength + 1;
+      int writer = readInt( rec.bytes, pos );
+      int fieldOrd = fieldOrds[writer][readInt( rec.bytes, pos + 4 + 8 )];
+      int valueOrd = valueOrds[writer][readInt( rec.bytes, pos + 4 + 8 + 4 )];
+      if (!containsPair( pairs, nPairs, fieldOrd, valueOrd )) {
+        pairs = grow( pairs, 2 * nPairs );
+        pairs[2 * nPairs] = fieldOrd;
+        pairs[2 * nPairs + 1] = valueOrd;
+        ++nPairs;
+      }
+      if (cursor.next( )) {
+        queue.add( cursor );
+      }
+    }
+    if (nTerms > 0) {
+      addTerm( currentTerm.get( ), termChars, termInts, fstBuilder, pairs, nPairs );
+    }
+
+    fieldValueMap = new FieldValueMap( fstBuilder.finish( ), getFieldNames( ), getValueBytes( ), getValueOffsets( ),
+                                       Arrays.copyOf( pairLists.ints( ), pairLists.length( ) ),
+                                       Arrays.copyOf( pairListOffsets.ints( ), pairListOffsets.length( ) ) );
+    Log.debug( "built field map with " + nTerms + " terms and " + pairListOrds.size( ) + " pair lists from " + nRecords + " entries"
+             + (sortedOffline ? " (sorted offline)" : "") );
+  }
+
+  FieldValueMap getFieldValueMap( ) {
+    return fieldValueMap;
+  }
+
+  @Override
+  public void close( ) throws IOException {
+    IOException error = null;
+    for (FieldWriter writer : writers ) {
+      try {
+        writer.close( );
+      }
+      catch ( IOException ioe ) {
+        if (error == null) error = ioe;
+      }
+    }
+    if (error != null) throw error;
+  }
+
+  // adds the words of a writer to the words of the map, in the writer's order - returns the map ord of each word
+  private int[] addWords( BytesRefHash words, BytesRefHash writerWords ) {
+    int[] ords = new int[ writerWords.size( ) ];
+    BytesRef scratch = new BytesRef( );
+    for (int i = 0; i < ords.length; i++) {
+      int ord = words.add( writerWords.get( i, scratch ) );
+      ords[i] = (ord < 0) ? -ord - 1 : ord;
+    }
+    writerWords.clear( );
+    return ords;
+  }
+
+  // FST input: the code points of the term, ORD_LABEL, the ordinal of its pair list
+  private void addTerm( BytesRef term, CharsRefBuilder termChars, IntsRefBuilder termInts,
+                        Builder<Object> fstBuilder, int[] pairs, int nPairs ) throws IOException {
+    termChars.copyUTF8Bytes( term );
+    Util.toUTF32( termChars.get( ), termInts );
+    termInts.append( FieldValueMap.ORD_LABEL );
+    termInts.append( getPairListOrd( pairs, nPairs ) );
+    fstBuilder.add( termInts.get( ), NoOutputs.getSingleton( ).getNoOutput( ) );
+  }
+
+  // the terms with the same pairs (e.g. a value and its stemmed form) share one list
+  private int getPairListOrd( int[] pairs, int nPairs ) {
+    IntsRef key = new IntsRef( pairs, 0, 2 * nPairs );
+    Integer ord = pairListOrds.get( key );
+    if (ord == null) {
+      ord = pairListOrds.size( );
+      pairListOrds.put( IntsRef.deepCopyOf( key ), ord );
+      for (int i = 0; i < 2 * nPairs; i++) {
+        pairLists.append( pairs[i] );
+      }
+      pairListOffsets.append( pairLists.length( ) );
+    }
+    return ord;
+  }
+
+  private String[] getFieldNames( ) {
+    String[] fieldNames = new String[ fieldWords.size( ) ];
+    BytesRef scratch = new BytesRef( );
+    for (int i = 0; i < fieldNames.length; i++) {
+      fieldNames[i] = fieldWords.get( i, scratch ).utf8ToString( );
+    }
+    return fieldNames;
+  }
+
+  private byte[] getValueBytes( ) {
+    BytesRef scratch = new BytesRef( );
+    int length = 0;
+    for (int i = 0; i < valueWords.size( ); i++) {
+      length += valueWords.get( i, scratch ).length;
+    }
+    byte[] valueBytes = new byte[ length ];
+    int pos = 0;
+    for (int i = 0; i < valueWords.size( ); i++) {
+      valueWords.get( i, scratch );
+      System.arraycopy( scratch.bytes, scratch.offset, valueBytes, pos, scratch.length );
+      pos += scratch.length;
+    }
+    return valueBytes;
+  }
+
+  private int[] getValueOffsets( ) {
+    BytesRef scratch = new BytesRef( );
+    int[] valueOffsets = new int[ valueWords.size( ) + 1 ];
+    for (int i = 0; i < valueWords.size( ); i++) {
+      valueOffsets[i + 1] = valueOffsets[i] + valueWords.get( i, scratch ).length;
+    }
+    return valueOffsets;
+  }
+
+  private static boolean hasWordSeparator( CharsRef chars ) {
+    for (int i = chars.offset; i < chars.offset + chars.length; i++) {
+      if (chars.chars[i] == SynonymMap.WORD_SEPARATOR) return true;
+    }
+    return false;
+  }
+
+  private static boolean sameTerm( BytesRef term, BytesRef rec, int termLength ) {
+    if (term.length != termLength) return false;
+    for (int i = 0; i < termLength; i++) {
+      if (term.bytes[term.offset + i] != rec.bytes[rec.offset + i]) return false;
+    }
+    return true;
+  }
+
+  private static boolean containsPair( int[] pairs, int nPairs, int fieldOrd, int valueOrd ) {
+    for (int i = 0; i < 2 * nPairs; i += 2) {
+      if (pairs[i] == fieldOrd && pairs[i + 1] == valueOrd) return true;
+    }
+    return false;
+  }
+
+  private static int[] grow( int[] ords, int nOrds ) {
+    if (nOrds + 2 <= ords.length) return ords;
+    int[] newOrds = new int[ ords.length * 2 ];
+    System.arraycopy( ords, 0, newOrds, 0, nOrds );
+    return newOrds;
+  }
+
+  private static int readInt( byte[] bytes, int pos ) {
+    return ((bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16) | ((bytes[pos + 2] & 0xFF) << 8) | (bytes[pos + 3] & 0xFF);
+  }
+
+  /**
+   * Encodes the entries of one thread. Its buffer counts towards the ramBufferBytes of the builder - when the
+   * buffers of all writers are full, the writer that adds the next entry spills its own.
+   */
+  final class FieldWriter implements Closeable {
+
+    private final int pos;
+    private final BytesRefHash fieldWords = new BytesRefHash( );
+    private final BytesRefHash valueWords = new BytesRefHash( );
+
+    private final Counter bytesUsed = Counter.newCounter( );
+    private BytesRefArray buffer = new BytesRefArray( bytesUsed );
+    private long reportedBytes = 0;    // part of bytesUsed added to the bufferedBytes of the builder
+
+    private final BytesRefBuilder record = new BytesRefBuilder( );
+    private final BytesRefBuilder utf8Scratch = new BytesRefBuilder( );
+    private long sequence = 0;
+
+    private Path tempDir;
+    private Path unsortedFile;
+    private Path sortedFile;
+    private OfflineSorter.ByteSequencesWriter spillWriter;
+    private OfflineSorter.ByteSequencesReader sortedReader;
+    private boolean finished = false;
+
+    private FieldWriter( int pos ) {
+      this.pos = pos;
+    }
+
+    /**
+     * Maps input to the (fieldName, value) pair.
+     */
+    void add( CharsRef input, CharsRef fieldName, CharsRef value ) throws IOException {
+      if (input.length == 0 || value.length == 0 || hasWordSeparator( input ) || hasWordSeparator( value )) {
+        // not a single term
+        Log.debug( "skipping '" + input + "' -> '" + value + "'" );
+        return;
+      }
+
+      int fieldOrd = addWord( fieldWords, fieldName );
+      int valueOrd = addWord( valueWords, value );
+
+      record.copyChars( input );
+      record.append( (byte)0 );
+      appendInt( pos );
+      appendLong( sequence++ );
+      appendInt( fieldOrd );
+      appendInt( valueOrd );
+
+      if (spillWriter != null) {
+        spillWriter.write( record.get( ) );
+        return;
+      }
+
+      buffer.append( record.get( ) );
+      long added = bytesUsed.get( ) - reportedBytes;
+      reportedBytes += added;
+      if (bufferedBytes.addAndGet( added ) > ramBufferBytes) {
+        spill( );
+      }
+    }
+
+    /**
+     * Sorts the spilled records. Call on the thread that added the entries, when it has added all of them.
+     */
+    void finish( ) throws IOException {
+      if (finished) return;
+      finished = true;
+      if (spillWriter == null) return;
+
+      spillWriter.close( );
+      spillWriter = null;
+      sortedFile = Files.createTempFile( tempDir, "autofilter", ".sorted" );
+      long bufferMB = Math.max( 1, ramBufferBytes / threads / OfflineSorter.MB );
+      OfflineSorter sorter = new OfflineSorter( OfflineSorter.DEFAULT_COMPARATOR, OfflineSorter.BufferSize.megabytes( bufferMB ),
+                                                tempDir, OfflineSorter.MAX_TEMPFILES );
+      sorter.sort( unsortedFile, sortedFile );
+      Files.delete( unsortedFile );
+      unsortedFile = null;
+    }
+
+    @Override
+    public void close( ) throws IOException {
+      try {
+        IOUtils.close( spillWriter, sortedReader );
+      }
+      finally {
+        IOUtils.deleteFilesIgnoringExceptions( unsortedFile, sortedFile );
+      }
+    }
+
+    private void spill( ) throws IOException {
+      tempDir = OfflineSorter.defaultTempDir( );
+      unsortedFile = Files.createTempFile( tempDir, "autofilter", ".unsorted" );
+      spillWriter = new OfflineSorter.ByteSequencesWriter( unsortedFile );
+
+      BytesRefIterator it = buffer.iterator( );
+      BytesRef rec;
+      while ((rec = it.next( )) != null) {
+        spillWriter.write( rec );
+      }
+      buffer = null;
+      bufferedBytes.addAndGet( -reportedBytes );
+      reportedBytes = 0;
+    }
+
+    private BytesRefIterator getSortedRecords( ) throws IOException {
+      if (sortedFile == null) {
+        return buffer.iterator( OfflineSorter.DEFAULT_COMPARATOR );
+      }
+
+      sortedReader = new OfflineSorter.ByteSequencesReader( sortedFile );
+      return new BytesRefIterator( ) {
+        private final BytesRefBuilder scratch = new BytesRefBuilder( );
+
+        @Override
+        public BytesRef next( ) throws IOException {
+          return sortedReader.read( scratch ) ? scratch.get( ) : null;
+        }
+      };
+    }
+
+    private int addWord( BytesRefHash words, CharsRef word ) {
+      utf8Scratch.copyChars( word );
+      int ord = words.add( utf8Scratch.get( ) );
+      return (ord < 0) ? -ord - 1 : ord;
+    }
+
+    private void appendLong( long value ) {
+      appendInt( (int)(value >>> 32) );
+      appendInt( (int)value );
+    }
+
+    private void appendInt( int value ) {
+      record.append( (byte)(value >>> 24) );
+      record.append( (byte)(value >>> 16) );
+      record.append( (byte)(value >>> 8) );
+      record.append( (byte)value );
+    }
+  }
+
+  // the current record of one writer during the merge
+  private static class RecordCursor implements Comparable<RecordCursor>
+  {
+    final BytesRefIterator records;
+    BytesRef record;
+
+    RecordCursor( BytesRefIterator records ) {
+      this.records = records;
+    }
+
+    boolean next( ) throws IOException {
+      record = records.next( );
+      return record != null;
+    }
+
+    @Override
+    public int compareTo( RecordCursor other ) {
+      return OfflineSorter.DEFAULT_COMPARATOR.compare( record, other.record );
+    }
+  }
+}
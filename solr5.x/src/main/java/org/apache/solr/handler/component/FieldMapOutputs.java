@@ -0,0 +1,137 @@
+package org.apache.solr.handler.component;
+
+import org.apache.solr.client.solrj.util.ClientUtils;
+
+import java.util.HashMap;
+
+/**
+ * The (field, value) pairs of a FieldValueMap decoded once for every ordinal, in the form the query rewrite emits
+ * them: the distinct field ords and field names joined with the fieldDelim, and the distinct values both as indexed
+ * (for shard pruning) and escaped for the query parser - quoted if they contain spaces. Query time only indexes
+ * the arrays with the ordinal the PhraseMatcher returns.
+ *
+ * Ordinals with the same fields share the field arrays and the key, and every value String is made once, so the
+ * table adds about two arrays of references per ordinal to the map. Built with the snapshot, never at query time.
+ */
+final class FieldMapOutputs {
+
+  final String fieldDelim;
+
+  private final int[][] fieldOrds;           // by ordinal: the distinct field ords, in order
+  private final String[] fieldKeys;          // by ordinal: the distinct field names, separated by fieldDelim
+  private final String[][] values;           // by ordinal: the distinct values, ready for the query
+  private final String[][] indexedValues;    // by ordinal: the distinct values, as indexed
+
+  FieldMapOutputs( FieldValueMap fieldMap, String fieldDelim ) {
+    this.fieldDelim = fieldDelim;
+
+    String[] indexed = new String[ fieldMap.getNumValues( ) ];
+    String[] emitted = new String[ indexed.length ];
+    for (int v = 0; v < indexed.length; v++) {
+      indexed[v] = fieldMap.getValue( v );
+      emitted[v] = getQueryValue( indexed[v] );
+    }
+
+    int nOrds = fieldMap.pairOffsets.length - 1;
+    fieldOrds = new int[ nOrds ][];
+    fieldKeys = new String[ nOrds ];
+    values = new String[ nOrds ][];
+    indexedValues = new String[ nOrds ][];
+
+    HashMap<String,Integer> keyOrds = new HashMap<String,Integer>( );
+    int[] fieldScratch = new int[ 8 ];
+    int[] valueScratch = new int[ 8 ];
+    for (int ord = 0; ord < nOrds; ord++) {
+      int nPairs = fieldMap.getNumPairs( ord );
+      if (fieldScratch.length < nPairs) {
+        fieldScratch = new int[ nPairs ];
+        valueScratch = new int[ nPairs ];
+      }
+      int nFields = 0;
+      int nValues = 0;
+      for (int i = 0; i < nPairs; i++) {
+        nFields = addDistinct( fieldScratch, nFields, fieldMap.getFieldOrd( ord, i ) );
+        nValues = addDistinct( valueScratch, nValues, fieldMap.getValueOrd( ord, i ) );
+      }
+
+      StringBuilder strb = new StringBuilder( );
+      for (int f = 0; f < nFields; f++) {
+        if (f > 0) strb.append( fieldDelim );
+        strb.append( fieldMap.getFieldName( fieldScratch[f] ) );
+      }
+      String fieldKey = strb.toString( );
+      Integer keyOrd = keyOrds.get( fieldKey );
+      if (keyOrd == null) {
+        keyOrds.put( fieldKey, ord );
+        fieldKeys[ord] = fieldKey;
+        int[] ords = new int[ nFields ];
+        System.arraycopy( fieldScratch, 0, ords, 0, nFields );
+        fieldOrds[ord] = ords;
+      }
+      else {
+        fieldKeys[ord] = fieldKeys[keyOrd];
+        fieldOrds[ord] = fieldOrds[keyOrd];
+      }
+
+      values[ord] = new String[ nValues ];
+      indexedValues[ord] = new String[ nValues ];
+      for (int v = 0; v < nValues; v++) {
+        values[ord][v] = emitted[valueScratch[v]];
+        indexedValues[ord][v] = indexed[valueScratch[v]];
+      }
+    }
+  }
+
+  int[] getFieldOrds( int ord ) {
+    return fieldOrds[ord];
+  }
+
+  /**
+   * The distinct field names of the pairs, in order, separated by the fieldDelim.
+   */
+  String getFieldKey( int ord ) {
+    return fieldKeys[ord];
+  }
+
+  /**
+   * The distinct values of the pairs, in order, as they go into the query.
+   */
+  String[] getValues( int ord ) {
+    return values[ord];
+  }
+
+  String[] getIndexedValues( int ord ) {
+    return indexedValues[ord];
+  }
+
+  boolean isMultiValued( int ord ) {
+    return values[ord].length > 1;
+  }
+
+  /**
+   * The indexed value as the query parser takes it: '_' as space, quoted if it has spaces, escaped otherwise.
+   */
+  static String getQueryValue( String indexedValue ) {
+    String value = indexedValue.replace( '_', ' ' );
+    if (value.indexOf( ' ' ) < 0) {
+      return ClientUtils.escapeQueryChars( value );
+    }
+
+    StringBuilder strb = new StringBuilder( value.length( ) + 2 ).append( '"' );
+    for (int i = 0; i < value.length( ); i++) {
+      char c = value.charAt( i );
+      if (c == '"' || c == '\\') strb.append( '\\' );
+      strb.append( c );
+    }
+    return strb.append( '"' ).toString( );
+  }
+
+  // adds ord to the first n entries of ords unless it is one of them, returns the new count
+  private static int addDistinct( int[] ords, int n, int ord ) {
+    for (int i = 0; i < n; i++) {
+      if (ords[i] == ord) return n;
+    }
+    ords[n] = ord;
+    return n + 1;
+  }
+}
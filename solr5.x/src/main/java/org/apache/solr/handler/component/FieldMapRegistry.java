@@ -0,0 +1,78 @@
+package org.apache.solr.handler.component;
+
+import org.apache.solr.core.CoreContainer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Field maps shared by the QueryAutoFilteringComponents of all cores of a CoreContainer. Components that have the
+ * same vocabulary key (collection, configuration and vocabulary version) would build the same map - e.g. replicas of
+ * a collection on one node - so they use one instance of it.
+ *
+ * A map is reference counted: each field map snapshot that uses it holds a reference, and the map is dropped from the
+ * registry when the last snapshot using it is replaced.
+ */
+final class FieldMapRegistry {
+
+  private static final Map<CoreContainer,FieldMapRegistry> registries = new WeakHashMap<CoreContainer,FieldMapRegistry>( );
+
+  private final HashMap<String,SharedMap> maps = new HashMap<String,SharedMap>( );
+
+  static FieldMapRegistry getRegistry( CoreContainer container ) {
+    synchronized( registries ) {
+      FieldMapRegistry registry = registries.get( container );
+      if (registry == null) {
+        registry = new FieldMapRegistry( );
+        registries.put( container, registry );
+      }
+      return registry;
+    }
+  }
+
+  /**
+   * Returns the map registered for the key and takes a reference to it, or null if there is none.
+   */
+  synchronized FieldValueMap acquire( String key ) {
+    SharedMap shared = maps.get( key );
+    if (shared == null) return null;
+    ++shared.refCount;
+    return shared.map;
+  }
+
+  /**
+   * Registers a newly built map and takes a reference to it. If a map was registered for the key in the meantime,
+   * that map is returned (and referenced) instead.
+   */
+  synchronized FieldValueMap register( String key, FieldValueMap map ) {
+    SharedMap shared = maps.get( key );
+    if (shared == null) {
+      shared = new SharedMap( map );
+      maps.put( key, shared );
+    }
+    ++shared.refCount;
+    return shared.map;
+  }
+
+  synchronized void release( String key ) {
+    SharedMap shared = maps.get( key );
+    if (shared != null && --shared.refCount == 0) {
+      maps.remove( key );
+    }
+  }
+
+  synchronized int size( ) {
+    return maps.size( );
+  }
+
+  private static class SharedMap
+  {
+    final FieldValueMap map;
+    int refCount = 0;
+
+    SharedMap( FieldValueMap map ) {
+      this.map = map;
+    }
+  }
+}
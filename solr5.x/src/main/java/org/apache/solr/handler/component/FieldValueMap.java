@@ -0,0 +1,213 @@
+package org.apache.solr.handler.component;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps search phrases to the (field, value) pairs they match. A single FST maps each phrase (spaces replaced by '_')
+ * to the ordinal of its list of (field ord, value ord) pairs, in the order they were added. Phrases with the same
+ * pairs share the list. The field names and the indexed values are kept once each in side tables, so both the field
+ * names and the indexed values of a phrase come from one lookup.
+ *
+ * The FST has no outputs - reading byte outputs allocates for every arc. The ordinal is the label of the last arc
+ * of each phrase, after an ORD_LABEL arc: phrase code points, ORD_LABEL, ordinal. Lookups go through the
+ * PhraseMatchers of the map and allocate nothing.
+ */
+final class FieldValueMap {
+
+  // sorts before every code point, so phrases keep the order of their UTF-8 bytes
+  static final int ORD_LABEL = 0;
+
+  private static final String[] NO_FIELDS = new String[0];
+  private static final int[] NO_OFFSETS = new int[] { 0 };
+  private static final int MAX_IDLE_MATCHERS = 64;
+
+  final FST<Object> fst;             // null if the map is empty
+  final String[] fieldNames;
+  final byte[] valueBytes;           // UTF-8 values, back to back
+  final int[] valueOffsets;          // start of each value in valueBytes, plus the end of the last one
+  final int[] pairs;                 // pair lists, back to back: field ord, value ord, field ord, value ord ...
+  final int[] pairOffsets;           // start of each pair list in pairs, plus the end of the last one
+
+  private volatile FieldMapOutputs outputs;   // decoded pairs of the last fieldDelim asked for
+
+  private final PhraseMatcher[] idleMatchers = new PhraseMatcher[ MAX_IDLE_MATCHERS ];
+  private int nIdleMatchers = 0;               // guarded by idleMatchers
+
+  static final FieldValueMap EMPTY = new FieldValueMap( null, NO_FIELDS, new byte[0], NO_OFFSETS, new int[0], NO_OFFSETS );
+
+  FieldValueMap( FST<Object> fst, String[] fieldNames, byte[] valueBytes, int[] valueOffsets, int[] pairs,
+                 int[] pairOffsets ) {
+    this.fst = fst;
+    this.fieldNames = fieldNames;
+    this.valueBytes = valueBytes;
+    this.valueOffsets = valueOffsets;
+    this.pairs = pairs;
+    this.pairOffsets = pairOffsets;
+  }
+
+  /**
+   * Returns the ordinal of the pairs of the phrase, or -1 if the phrase is not in the map. Copies the phrase - the
+   * PhraseMatcher looks up slices of char arrays without copying.
+   */
+  int lookup( String phrase ) throws IOException {
+    PhraseMatcher matcher = acquireMatcher( );
+    int ord = matcher.lookup( phrase.toCharArray( ), 0, phrase.length( ) );
+    releaseMatcher( matcher );
+    return ord;
+  }
+
+  /**
+   * An idle matcher of the map, or a new one. A matcher that is not released (e.g. after an exception) is just
+   * garbage collected.
+   */
+  PhraseMatcher acquireMatcher( ) {
+    synchronized (idleMatchers) {
+      if (nIdleMatchers > 0) {
+        PhraseMatcher matcher = idleMatchers[--nIdleMatchers];
+        idleMatchers[nIdleMatchers] = null;
+        return matcher;
+      }
+    }
+    return new PhraseMatcher( this );
+  }
+
+  /**
+   * Keeps the matcher for the next request, up to MAX_IDLE_MATCHERS of them.
+   */
+  void releaseMatcher( PhraseMatcher matcher ) {
+    synchronized (idleMatchers) {
+      if (nIdleMatchers < idleMatchers.length) {
+        idleMatchers[nIdleMatchers++] = matcher;
+      }
+    }
+  }
+
+  int getNumPairs( int ord ) {
+    return (pairOffsets[ord + 1] - pairOffsets[ord]) / 2;
+  }
+
+  int getFieldOrd( int ord, int pair ) {
+    return pairs[pairOffsets[ord] + 2 * pair];
+  }
+
+  int getValueOrd( int ord, int pair ) {
+    return pairs[pairOffsets[ord] + 2 * pair + 1];
+  }
+
+  String getFieldName( int fieldOrd ) {
+    return fieldNames[fieldOrd];
+  }
+
+  String getValue( int valueOrd ) {
+    int start = valueOffsets[valueOrd];
+    return new String( valueBytes, start, valueOffsets[valueOrd + 1] - start, StandardCharsets.UTF_8 );
+  }
+
+  int getNumValues( ) {
+    return valueOffsets.length - 1;
+  }
+
+  /**
+   * The pairs of every ordinal decoded for the query rewrite. Made once per map - maps shared by several cores are
+   * decoded by the first one.
+   */
+  FieldMapOutputs getOutputs( String fieldDelim ) {
+    FieldMapOutputs outputs = this.outputs;
+    if (outputs == null || !outputs.fieldDelim.equals( fieldDelim )) {
+      outputs = new FieldMapOutputs( this, fieldDelim );
+      this.outputs = outputs;
+    }
+    return outputs;
+  }
+
+  /**
+   * The distinct field names of the pairs, in order, separated by delim.
+   */
+  String getFieldNames( int ord, String delim ) {
+    StringBuilder strb = new StringBuilder( );
+    int start = pairOffsets[ord];
+    for (int i = start; i < pairOffsets[ord + 1]; i += 2) {
+      if (!containsOrd( start, i, pairs[i] )) {
+        if (strb.length( ) > 0) strb.append( delim );
+        strb.append( getFieldName( pairs[i] ) );
+      }
+    }
+    return strb.toString( );
+  }
+
+  /**
+   * The distinct values of the pairs, in order, separated by delim.
+   */
+  String getValues( int ord, String delim ) {
+    StringBuilder strb = new StringBuilder( );
+    int start = pairOffsets[ord] + 1;
+    for (int i = start; i < pairOffsets[ord + 1]; i += 2) {
+      if (!containsOrd( start, i, pairs[i] )) {
+        if (strb.length( ) > 0) strb.append( delim );
+        strb.append( getValue( pairs[i] ) );
+      }
+    }
+    return strb.toString( );
+  }
+
+  // true if ord is at one of the positions start, start + 2 ... before end
+  private boolean containsOrd( int start, int end, int ord ) {
+    for (int i = start; i < end; i += 2) {
+      if (pairs[i] == ord) return true;
+    }
+    return false;
+  }
+
+  void save( DataOutput out ) throws IOException {
+    out.writeVInt( fieldNames.length );
+    for (String fieldName : fieldNames ) {
+      out.writeString( fieldName );
+    }
+    out.writeVInt( valueOffsets.length );
+    for (int i = 0; i < valueOffsets.length; i++) {
+      out.writeVInt( valueOffsets[i] );
+    }
+    out.writeVInt( valueBytes.length );
+    out.writeBytes( valueBytes, 0, valueBytes.length );
+    out.writeVInt( pairOffsets.length );
+    for (int i = 0; i < pairOffsets.length; i++) {
+      out.writeVInt( pairOffsets[i] );
+    }
+    for (int i = 0; i < pairs.length; i++) {
+      out.writeVInt( pairs[i] );
+    }
+    out.writeByte( (byte)(fst != null ? 1 : 0) );
+    if (fst != null) {
+      fst.save( out );
+    }
+  }
+
+  static FieldValueMap load( DataInput in ) throws IOException {
+    String[] fieldNames = new String[ in.readVInt( ) ];
+    for (int i = 0; i < fieldNames.length; i++) {
+      fieldNames[i] = in.readString( );
+    }
+    int[] valueOffsets = new int[ in.readVInt( ) ];
+    for (int i = 0; i < valueOffsets.length; i++) {
+      valueOffsets[i] = in.readVInt( );
+    }
+    byte[] valueBytes = new byte[ in.readVInt( ) ];
+    in.readBytes( valueBytes, 0, valueBytes.length );
+    int[] pairOffsets = new int[ in.readVInt( ) ];
+    for (int i = 0; i < pairOffsets.length; i++) {
+      pairOffsets[i] = in.readVInt( );
+    }
+    int[] pairs = new int[ pairOffsets[pairOffsets.length - 1] ];
+    for (int i = 0; i < pairs.length; i++) {
+      pairs[i] = in.readVInt( );
+    }
+    FST<Object> fst = (in.readByte( ) == 1) ? new FST<Object>( in, NoOutputs.getSingleton( ) ) : null;
+    return new FieldValueMap( fst, fieldNames, valueBytes, valueOffsets, pairs, pairOffsets );
+  }
+}
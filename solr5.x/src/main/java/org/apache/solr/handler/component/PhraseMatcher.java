@@ -0,0 +1,127 @@
+package org.apache.solr.handler.component;
+
+import org.apache.lucene.util.fst.FST;
+
+import java.io.IOException;
+
+/**
+ * Finds the longest phrase of query tokens, starting at a given token, that is in a FieldValueMap - with one walk of
+ * the FST. The phrase is extended token by token from the arc of the tokens before, so no phrase Strings are built,
+ * and the walk stops at the first token that leaves the FST. At every token, the phrase with that token stemmed is
+ * tried from the same arc when the phrase itself is not in the map.
+ *
+ * The tokens (QueryTokens) are matched lower cased, separated by '_', as the phrases are added to the map. The result is the
+ * ordinal of the pairs of the phrase.
+ *
+ * A matcher has the arcs, the FST reader and the stem buffer it reuses for every lookup, so lookups don't allocate.
+ * It is not thread safe: take one from FieldValueMap.acquireMatcher( ) for each request and release it when done. The
+ * idle matchers belong to their map and go away with it.
+ */
+final class PhraseMatcher {
+
+  private final FST<Object> fst;
+  private final FST.BytesReader fstReader;
+  private final FST.Arc<Object> arc = new FST.Arc<Object>( );
+  private final FST.Arc<Object> stemArc = new FST.Arc<Object>( );
+  private final FST.Arc<Object> ordArc = new FST.Arc<Object>( );
+  private char[] stemBuffer = new char[ 32 ];
+
+  private int matchOrd = -1;      // ordinal of the pairs of the longest phrase found
+
+  PhraseMatcher( FieldValueMap fieldMap ) {
+    this.fst = fieldMap.fst;
+    this.fstReader = (fieldMap.fst != null) ? fieldMap.fst.getBytesReader( ) : null;
+  }
+
+  /**
+   * Returns the last token of the longest phrase from startToken that is in the map, -1 if there is none.
+   */
+  int match( QueryTokens tokens, int startToken ) throws IOException {
+    matchOrd = -1;
+    if (fst == null) return -1;
+
+    int endToken = -1;
+    char[] chars = tokens.buffer( );
+    fst.getFirstArc( arc );
+    for (int t = startToken; t < tokens.size( ); t++) {
+      if (t > startToken && fst.findTargetArc( '_', arc, arc, fstReader ) == null) break;
+
+      int start = tokens.start( t );
+      int length = tokens.length( t );
+      stemArc.copyFrom( arc );
+      boolean inFst = walk( chars, start, start + length, arc, false );
+      int ord = (inFst && !(t == startToken && length == 1 && chars[start] == '*')) ? getOrd( arc ) : -1;
+      if (ord < 0) {
+        ord = matchStemmed( chars, start, length, t > startToken );
+      }
+      if (ord >= 0) {
+        matchOrd = ord;
+        endToken = t;
+      }
+      if (!inFst) break;
+    }
+    return endToken;
+  }
+
+  /**
+   * The ordinal of the pairs of the last match.
+   */
+  int getOrd( ) {
+    return matchOrd;
+  }
+
+  /**
+   * Returns the ordinal of the pairs of the phrase in chars, spaces taken as '_', or -1 if it is not in the map.
+   */
+  int lookup( char[] chars, int offset, int length ) throws IOException {
+    matchOrd = -1;
+    if (fst == null) return -1;
+
+    fst.getFirstArc( arc );
+    if (walk( chars, offset, offset + length, arc, true )) {
+      matchOrd = getOrd( arc );
+    }
+    return matchOrd;
+  }
+
+  // Walks the phrase with the token stemmed on from stemArc. The stemmer sees the separator before the token, as it
+  // did when whole phrases were stemmed. Returns the ordinal of the stemmed phrase, -1 if it is not in the map.
+  private int matchStemmed( char[] chars, int start, int tokenLength, boolean afterSeparator ) throws IOException {
+    int offset = afterSeparator ? 1 : 0;
+    int length = offset + tokenLength;
+    if (stemBuffer.length < length) {
+      stemBuffer = new char[ length ];
+    }
+    stemBuffer[0] = '_';
+    System.arraycopy( chars, start, stemBuffer, offset, tokenLength );
+    int stemmedLength = QueryAutoFilteringComponent.stem( stemBuffer, length );
+    if (stemmedLength == length || !walk( stemBuffer, offset, stemmedLength, stemArc, false )) return -1;
+
+    return getOrd( stemArc );
+  }
+
+  // Follows the lower cased chars from the arc. Returns false if they leave the FST.
+  private boolean walk( char[] chars, int start, int end, FST.Arc<Object> arc, boolean spaceIsSeparator ) throws IOException {
+    int charPos = start;
+    while (charPos < end) {
+      int codePoint = Character.codePointAt( chars, charPos, end );
+      charPos += Character.charCount( codePoint );
+      if (codePoint == ' ' && spaceIsSeparator) {
+        codePoint = '_';
+      }
+      if (codePoint == FieldValueMap.ORD_LABEL
+          || fst.findTargetArc( Character.toLowerCase( codePoint ), arc, arc, fstReader ) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // ordinal of the phrase that ends at the arc, -1 if that phrase is not in the map
+  private int getOrd( FST.Arc<Object> arc ) throws IOException {
+    if (fst.findTargetArc( FieldValueMap.ORD_LABEL, arc, ordArc, fstReader ) == null) return -1;
+
+    fst.readFirstTargetArc( ordArc, ordArc, fstReader );
+    return ordArc.label;
+  }
+}
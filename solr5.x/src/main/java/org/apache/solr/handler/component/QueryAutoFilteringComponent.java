@@ -1,40 +1,78 @@
 package org.apache.solr.handler.component;
 
+import org.apache.http.client.HttpClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.cloud.CloudDescriptor;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkCoreNodeProps;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.CommonParams;
-import org.apache.solr.common.params.TermsParams;
 import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
 
 import org.apache.solr.util.plugin.SolrCoreAware;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.RefCounted;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.CoreContainer;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.core.SolrResourceLoader;
 import org.apache.solr.core.SolrEventListener;
 
+import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.StrField;
 import org.apache.solr.search.SolrIndexSearcher;
 
-import org.apache.solr.client.solrj.response.TermsResponse;
 
 import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RAMFile;
+import org.apache.lucene.store.RAMOutputStream;
+import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
 import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.uninverting.UninvertingReader;
-import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.KeywordTokenizer;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
 import org.apache.lucene.analysis.synonym.SynonymMap;
 import org.apache.lucene.analysis.synonym.SynonymMap.Builder;
 import org.apache.lucene.analysis.synonym.SolrSynonymParser;
@@ -48,34 +86,61 @@ import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.util.fst.FST;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.PriorityQueue;
 import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
-import java.io.StringReader;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
 
 /**
  * Creates filter or boost queries from freetext queries based on pattern matches with terms in stored String fields. Uses
- * the FieldCache (UninvertingIndex) to build a map of term to search field. This map is then used to parse the
+ * the terms dictionary (or doc values) of these fields to build a map of term to search field. This map is then used to parse the
  * query to detect phrases that map to specific field values. These field/value pairs can then be used to generate 
  * a filter query or a boost query if recall needs to be preserved.
  *
  * For SolrCloud, this component requires that the TermsComponent be defined in solrconfig.xml. This is used
  * to get distributed term maps.
  *
+ * The term maps are rebuilt on a background thread whenever a new searcher is opened and published as a single
+ * immutable snapshot, so queries keep using the previous maps until the new ones are complete. With buildMode "warm"
+ * the maps are built while the new searcher is warming, so the searcher is never served without them.
+ *
  * Compiles with Solr 5.x
  */
 
@@ -86,23 +151,146 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
   public static final String MINIMUM_TOKENS = "mt";
   public static final String BOOST_PARAM    = "afb";
     
-  private SynonymMap fieldMap;   // Map of search terms to fieldName
+  public static final String BUILD_MODE_BACKGROUND = "background";
+  public static final String BUILD_MODE_WARM       = "warm";
+    
+  public static final String FREE_TEXT_QUERY  = "query";
+  public static final String FREE_TEXT_FILTER = "filter";
+    
+  public static final String REBUILD_ON_COMMIT      = "commit";
+  public static final String REBUILD_ON_HARD_COMMIT = "hardCommit";
+    
   private SynonymMap synonyms;   // synonyms from synonyms.txt
-  private SynonymMap termMap;    // Map of search term to indexed term
+    
+  // query tokenizer: the query analyzer of the schema field type queryFieldType, the queryAnalyzer chain (a tokenizer
+  // and filters, by SPI name) or the StandardTokenizer alone
+  private String queryFieldType;
+  private NamedList<?> queryAnalyzerChain;
+  private Analyzer queryAnalyzer;
+    
+  // current field map - replaced as a whole when a rebuild has completed
+  private final AtomicReference<FieldMapSnapshot> fieldMapSnapshot = new AtomicReference<FieldMapSnapshot>( );
+    
+  // newest searcher not yet processed by the builder thread - its reader is held open (incRef) until then
+  private final AtomicReference<SolrIndexSearcher> pendingSearcher = new AtomicReference<SolrIndexSearcher>( );
+    
+  private ScheduledThreadPoolExecutor builderExecutor;
+  private ForkJoinPool buildPool;      // reads segments and fields in parallel - null if buildThreads is 1
+  private int buildThreads = 1;
+  private int buildRamBufferMB = 32;   // entries beyond this are sorted on disk
+  private final Object buildLock = new Object( );
+  private volatile boolean closed = false;
+    
+  // "background": build after the new searcher is registered, "warm": build while the new searcher is warming
+  private String buildMode = BUILD_MODE_BACKGROUND;
+    
+  // max time (ms) to hold up warming for a build. The first searcher is always bounded so core startup can't hang.
+  private int warmTimeout = 0;
+  private int firstSearcherTimeout = 30000;
+    
+  // Background rebuilds start rebuildDelay ms after the last new searcher, but no earlier than minRebuildInterval ms
+  // after the previous rebuild started - and, if maxStaleness is set, no later than maxStaleness ms after the first
+  // searcher that is not in the map yet. Searchers that come in while a rebuild waits are coalesced.
+  private int rebuildDelay = 0;
+  private int minRebuildInterval = 0;
+  private int maxStaleness = 0;
+  private volatile long firstTriggerTime;
+  private volatile long lastTriggerTime;
+  private volatile long lastBuildTime;
+  private volatile long buildCount = 0;   // builds run by the builder - written under buildLock
+    
+  // "commit": rebuild for every new searcher, "hardCommit": only for the first searcher after a hard commit
+  private String rebuildOn = REBUILD_ON_COMMIT;
+  private volatile boolean hardCommitSinceBuild = false;
+  // newest searcher skipped for lack of a hard commit - its reader is held open (incRef) until the next hard commit
+  private final AtomicReference<SolrIndexSearcher> deferredSearcher = new AtomicReference<SolrIndexSearcher>( );
+    
+  // shard list (sorted) of the last distributed request - background builds fetch the distributed terms from it
+  private final AtomicReference<String> distribShards = new AtomicReference<String>( );
+    
+  // Each shard terms request times out after shardTimeout ms and is retried - on the next replica of the shard - up
+  // to shardRetries times. A build that is missing shards is repeated every partialRetryInterval ms until complete.
+  private int shardTimeout = 30000;
+  private int shardRetries = 2;
+  private int partialRetryInterval = 10000;
+  private int shardPageSize = 10000;             // terms per shard terms request
+  private int shardFetchThreads = 8;             // shards asked at once
+  // send filtered queries only to the shards that have the filter values
+  private boolean pruneShards = false;
+  // the index versions of the pruned shards are read every shardCheckInterval ms, off the request path
+  private int shardCheckInterval = 5000;
+  private ScheduledThreadPoolExecutor shardCheckExecutor;   // null unless pruneShards is set
+  private volatile long shardVersionChecks = 0;             // written under shardCheckLock
+  private final Object shardCheckLock = new Object( );
+  private volatile ShardVocabularyFetcher shardFetcher;   // created by the first distributed build under buildLock
+  // searcher of the last partial build - its reader is held open (incRef) until the build is retried
+  private final AtomicReference<SolrIndexSearcher> retrySearcher = new AtomicReference<SolrIndexSearcher>( );
+    
+  // vocabularies of the segments of the last searcher built, keyed by segment core - guarded by buildLock
+  private HashMap<Object,SegmentVocabulary> segmentVocabularies = new HashMap<Object,SegmentVocabulary>( );
+  // vocabularies of the shards of the last build, keyed by shard - only shards whose index version moved are
+  // fetched again. Their values are in run files on disk. Guarded by buildLock.
+  private HashMap<String,ShardVocabulary> shardVocabularies = new HashMap<String,ShardVocabulary>( );
+  private static final String[] EMPTY_VALUES = new String[0];
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME  = 0x100000001b3L;
+    
+  // the maps are saved in the data dir and loaded on the next core load if the index hasn't changed
+  private boolean persistFieldMap = true;
+  private static final String SNAPSHOT_DIR   = "autofilter";
+  private static final String SNAPSHOT_CODEC = "AutoFilterFieldMap";
+  private static final int SNAPSHOT_VERSION  = 3;
+  private String snapshotPrefix;        // file name prefix of this component's snapshots
+  private String configFingerprint;     // configuration the maps depend on - a saved snapshot must match it
+  private volatile boolean hardCommitSincePersist = false;
+  private FieldMapSnapshot persistedSnapshot;   // guarded by buildLock
+    
+  // One core builds the maps and the other coordinators pull its snapshots from its AutoFilterSnapshotHandler every
+  // snapshotPollInterval ms: the core at snapshotSource or - in SolrCloud, if snapshotHandler is set - the leader of
+  // the collection's first shard. While pulling, a core builds nothing itself.
+  private String snapshotHandler;
+  private String snapshotSource;
+  private int snapshotPollInterval = 5000;
+  private volatile boolean pullingSnapshots = false;
+  private String pulledSnapshotId;        // only used by the builder thread
+  private HttpClient snapshotClient;      // created by the first pull - only used by the builder thread
+  private final String builderId = UUID.randomUUID( ).toString( );   // tells a core it is pulling from itself
+  private volatile ServedSnapshot servedSnapshot;                     // last snapshot serialized for the pullers
+  private static final String DEFAULT_SNAPSHOT_HANDLER = "/autofilterSnapshot";
+  private static final String PULLED_PREFIX = "pulled_";
+
+  // name of the AutoFilterQParserPlugin that takes the queries built here - filter queries are built as query
+  // objects then, not as strings. Null to build strings.
+  private String nativeQueryParser;
+    
+  // rewrites of recent queries, cleared when a snapshot is published - null if rewriteCacheSize is 0
+  private int rewriteCacheSize = 1024;
+  private int rewriteCacheMaxChars = 1024 * 1024;
+  private RewriteCache<Rewrite> rewriteCache;
+
+  // maps shared with the other cores of the node - null if this component builds its own
+  private boolean shareFieldMap = true;
+  private FieldMapRegistry fieldMapRegistry;
+    
+  private SolrCore core;
     
   private String synonymsFile;
     
   private NamedList initParams;
-	
-  private boolean initFieldMap = false;
     
   private String termsHandler = "/terms";
+  // AutoFilterVocabularyHandler of the shards - if null, the shard terms come from the termsHandler
+  private String vocabularyHandler;
     
   private HashSet<String> excludeFields;
   private HashSet<String> stopwords;
     
   private Integer boostFactor;  // if null, use Filter Query
     
+  // Query with free text left: "query" - the matched fields are ANDed into q, ORed with the free text (they score),
+  // "filter" - q is the free text, each matched field is a filter query (cached in the filterCache)
+  private String freeTextMode = FREE_TEXT_QUERY;
+    
   // For multiple terms in the same field, if field is multi-valued = use AND for filter query
   private boolean useAndForMultiValuedFields = true;
 
@@ -147,6 +335,14 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
       this.boostFactor = boostFactor;
     }
 
+    String freeTextMode = (String)initArgs.get( "freeTextMode" );
+    if (freeTextMode != null) {
+      if (!freeTextMode.equals( FREE_TEXT_QUERY ) && !freeTextMode.equals( FREE_TEXT_FILTER )) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "Unknown freeTextMode '" + freeTextMode + "'" );
+      }
+      this.freeTextMode = freeTextMode;
+    }
+
     String useAndForMV = (String)initArgs.get( "useAndForMultiValuedFields" );
     if (useAndForMV != null) {
       this.useAndForMultiValuedFields = useAndForMV.equalsIgnoreCase( "true" );
@@ -158,6 +354,160 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
       this.fieldSplitExpr = useFieldDelim;
     }
       
+    String buildMode = (String)initArgs.get( "buildMode" );
+    if (buildMode != null) {
+      if (!buildMode.equals( BUILD_MODE_BACKGROUND ) && !buildMode.equals( BUILD_MODE_WARM )) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "Unknown buildMode '" + buildMode + "'" );
+      }
+      this.buildMode = buildMode;
+    }
+      
+    Integer warmTimeout = (Integer)initArgs.get( "warmTimeout" );
+    if (warmTimeout != null) {
+      this.warmTimeout = warmTimeout;
+    }
+      
+    Integer firstSearcherTimeout = (Integer)initArgs.get( "firstSearcherTimeout" );
+    if (firstSearcherTimeout != null) {
+      this.firstSearcherTimeout = firstSearcherTimeout;
+    }
+      
+    Integer rebuildDelay = (Integer)initArgs.get( "rebuildDelay" );
+    if (rebuildDelay != null) {
+      this.rebuildDelay = rebuildDelay;
+    }
+      
+    Integer minRebuildInterval = (Integer)initArgs.get( "minRebuildInterval" );
+    if (minRebuildInterval != null) {
+      this.minRebuildInterval = minRebuildInterval;
+    }
+      
+    Integer maxStaleness = (Integer)initArgs.get( "maxStaleness" );
+    if (maxStaleness != null) {
+      this.maxStaleness = maxStaleness;
+    }
+      
+    String rebuildOn = (String)initArgs.get( "rebuildOn" );
+    if (rebuildOn != null) {
+      if (!rebuildOn.equals( REBUILD_ON_COMMIT ) && !rebuildOn.equals( REBUILD_ON_HARD_COMMIT )) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "Unknown rebuildOn '" + rebuildOn + "'" );
+      }
+      this.rebuildOn = rebuildOn;
+    }
+      
+    Integer shardTimeout = (Integer)initArgs.get( "shardTimeout" );
+    if (shardTimeout != null) {
+      this.shardTimeout = shardTimeout;
+    }
+      
+    Integer shardRetries = (Integer)initArgs.get( "shardRetries" );
+    if (shardRetries != null) {
+      this.shardRetries = shardRetries;
+    }
+      
+    Integer partialRetryInterval = (Integer)initArgs.get( "partialRetryInterval" );
+    if (partialRetryInterval != null) {
+      this.partialRetryInterval = partialRetryInterval;
+    }
+      
+    vocabularyHandler = (String)initArgs.get( "vocabularyHandler" );
+      
+    Boolean pruneShards = (Boolean)initArgs.get( "pruneShards" );
+    if (pruneShards != null) {
+      this.pruneShards = pruneShards;
+    }
+      
+    Integer shardCheckInterval = (Integer)initArgs.get( "shardCheckInterval" );
+    if (shardCheckInterval != null) {
+      if (shardCheckInterval < 1) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "shardCheckInterval must be at least 1" );
+      }
+      this.shardCheckInterval = shardCheckInterval;
+    }
+      
+    Integer shardFetchThreads = (Integer)initArgs.get( "shardFetchThreads" );
+    if (shardFetchThreads != null) {
+      if (shardFetchThreads < 1) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "shardFetchThreads must be at least 1" );
+      }
+      this.shardFetchThreads = shardFetchThreads;
+    }
+      
+    Integer shardPageSize = (Integer)initArgs.get( "shardPageSize" );
+    if (shardPageSize != null) {
+      if (shardPageSize < 1) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "shardPageSize must be at least 1" );
+      }
+      this.shardPageSize = shardPageSize;
+    }
+      
+    Integer buildThreads = (Integer)initArgs.get( "buildThreads" );
+    if (buildThreads != null) {
+      if (buildThreads < 1) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "buildThreads must be at least 1" );
+      }
+      this.buildThreads = buildThreads;
+    }
+      
+    Integer buildRamBufferMB = (Integer)initArgs.get( "buildRamBufferMB" );
+    if (buildRamBufferMB != null) {
+      if (buildRamBufferMB < 1) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "buildRamBufferMB must be at least 1" );
+      }
+      this.buildRamBufferMB = buildRamBufferMB;
+    }
+      
+    Boolean persistFieldMap = (Boolean)initArgs.get( "persistFieldMap" );
+    if (persistFieldMap != null) {
+      this.persistFieldMap = persistFieldMap;
+    }
+      
+    Boolean shareFieldMap = (Boolean)initArgs.get( "shareFieldMap" );
+    if (shareFieldMap != null) {
+      this.shareFieldMap = shareFieldMap;
+    }
+
+    snapshotHandler = (String)initArgs.get( "snapshotHandler" );
+    String snapshotSource = (String)initArgs.get( "snapshotSource" );
+    if (snapshotSource != null && snapshotSource.trim( ).length( ) > 0) {
+      this.snapshotSource = snapshotSource.trim( );
+    }
+
+    Integer snapshotPollInterval = (Integer)initArgs.get( "snapshotPollInterval" );
+    if (snapshotPollInterval != null) {
+      if (snapshotPollInterval < 1) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "snapshotPollInterval must be at least 1" );
+      }
+      this.snapshotPollInterval = snapshotPollInterval;
+    }
+
+    nativeQueryParser = (String)initArgs.get( "nativeQueryParser" );
+      
+    queryFieldType = (String)initArgs.get( "queryFieldType" );
+    queryAnalyzerChain = (NamedList<?>)initArgs.get( "queryAnalyzer" );
+    if (queryFieldType != null && queryAnalyzerChain != null) {
+      throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "set either queryFieldType or queryAnalyzer" );
+    }
+
+    Integer rewriteCacheSize = (Integer)initArgs.get( "rewriteCacheSize" );
+    if (rewriteCacheSize != null) {
+      if (rewriteCacheSize < 0) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "rewriteCacheSize must not be negative" );
+      }
+      this.rewriteCacheSize = rewriteCacheSize;
+    }
+
+    Integer rewriteCacheMaxChars = (Integer)initArgs.get( "rewriteCacheMaxChars" );
+    if (rewriteCacheMaxChars != null) {
+      if (rewriteCacheMaxChars < 1) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "rewriteCacheMaxChars must be at least 1" );
+      }
+      this.rewriteCacheMaxChars = rewriteCacheMaxChars;
+    }
+    if (this.rewriteCacheSize > 0) {
+      rewriteCache = new RewriteCache<Rewrite>( this.rewriteCacheSize, this.rewriteCacheMaxChars );
+    }
+
     initParams = initArgs;
   }
     
@@ -214,6 +564,7 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     
   @Override
   public void inform( SolrCore core ) {
+    this.core = core;
     if (initParams != null) {
       SolrResourceLoader resourceLoader = core.getResourceLoader( );
         
@@ -258,22 +609,367 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
       }
     }
       
+    queryAnalyzer = getQueryAnalyzer( core );
+    if (nativeQueryParser != null && !(core.getQueryPlugin( nativeQueryParser ) instanceof AutoFilterQParserPlugin)) {
+      throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "nativeQueryParser '" + nativeQueryParser
+                                                                   + "' is not an AutoFilterQParserPlugin" );
+    }
+      
+    for (String name : core.getSearchComponents( ).keySet( )) {
+      if (core.getSearchComponent( name ) == this) {
+        snapshotPrefix = SNAPSHOT_DIR + "_" + name + "_";
+      }
+    }
+    configFingerprint = getConfigFingerprint( );
+    if (shareFieldMap) {
+      fieldMapRegistry = FieldMapRegistry.getRegistry( core.getCoreDescriptor( ).getCoreContainer( ) );
+    }
+      
+    builderExecutor = new ScheduledThreadPoolExecutor( 1, new DefaultSolrThreadFactory( "autofilterBuilder" ) );
+    // a rebuild that is waiting for its start time is dropped on close
+    builderExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+    if (buildThreads > 1) {
+      buildPool = new ForkJoinPool( buildThreads );
+    }
+    if ((snapshotSource != null || snapshotHandler != null) && snapshotPrefix != null) {
+      // the first poll runs before the first searcher's build, so a pulling core doesn't build at startup
+      builderExecutor.scheduleWithFixedDelay( new Runnable( ) {
+        @Override
+        public void run( ) {
+          pollSnapshot( );
+        }
+      }, 0, snapshotPollInterval, TimeUnit.MILLISECONDS );
+    }
+    if (pruneShards) {
+      shardCheckExecutor = new ScheduledThreadPoolExecutor( 1, new DefaultSolrThreadFactory( "autofilterShardCheck" ) );
+      shardCheckExecutor.scheduleWithFixedDelay( new Runnable( ) {
+        @Override
+        public void run( ) {
+          checkShardVersions( );
+        }
+      }, shardCheckInterval, shardCheckInterval, TimeUnit.MILLISECONDS );
+    }
+    core.addCloseHook( new CloseHook( ) {
+      @Override
+      public void preClose( SolrCore core ) {
+        closed = true;
+        if (shardCheckExecutor != null) {
+          ExecutorUtil.shutdownNowAndAwaitTermination( shardCheckExecutor );
+        }
+        // don't interrupt a running build - an interrupt can close the index file channels under the reader
+        ExecutorUtil.shutdownAndAwaitTermination( builderExecutor );
+        if (buildPool != null) {
+          ExecutorUtil.shutdownAndAwaitTermination( buildPool );
+        }
+        if (snapshotClient != null) {
+          HttpClientUtil.close( snapshotClient );
+        }
+        if (queryFieldType == null) {
+          // the schema's analyzers are closed with the schema
+          queryAnalyzer.close( );
+        }
+        releaseSearcher( pendingSearcher.getAndSet( null ) );
+        releaseSearcher( deferredSearcher.getAndSet( null ) );
+        releaseSearcher( retrySearcher.getAndSet( null ) );
+        synchronized( buildLock ) {
+          persistFieldMap( );
+          releaseFieldMap( fieldMapSnapshot.get( ) );
+          if (shardFetcher != null) {
+            // removes the run files of the shard vocabularies
+            shardFetcher.close( );
+          }
+        }
+      }
+        
+      @Override
+      public void postClose( SolrCore core ) {  }
+    } );
+      
     core.registerFirstSearcherListener( this );
     core.registerNewSearcherListener( this );
+    core.getUpdateHandler( ).registerCommitCallback( this );
   }
     
   @Override
-  public void postCommit() {  }
+  public void postCommit() {
+    // save the maps built after a hard commit, a crash then loses at most the soft commits since
+    hardCommitSincePersist = true;
+    hardCommitSinceBuild = true;
+      
+    SolrIndexSearcher deferred = deferredSearcher.getAndSet( null );
+    if (deferred != null) {
+      triggerBuild( deferred );
+    }
+  }
 
   @Override
   public void postSoftCommit() {  }
     
   public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
-    synchronized( this ) {
-      initFieldMap = true;
+    // a pulling core gets its maps from the builder
+    if (closed || pullingSnapshots) return;
+      
+    if (currentSearcher == null && persistFieldMap && fieldMapSnapshot.get( ) == null && loadFieldMap( newSearcher )) {
+      return;
+    }
+      
+    // the searcher may be closed before the builder gets to it - keep its reader open until then
+    newSearcher.getIndexReader( ).incRef( );
+      
+    if (currentSearcher != null && rebuildOn.equals( REBUILD_ON_HARD_COMMIT ) && !hardCommitSinceBuild
+        && fieldMapSnapshot.get( ) != null) {
+      // a hard commit without changes since this searcher doesn't open a new one - build this one then
+      Log.debug( "no hard commit since the last rebuild - keeping field map" );
+      releaseSearcher( deferredSearcher.getAndSet( newSearcher ) );
+      return;
+    }
+    hardCommitSinceBuild = false;
+    releaseSearcher( deferredSearcher.getAndSet( null ) );
+      
+    if (!triggerBuild( newSearcher )) return;
+      
+    if (buildMode.equals( BUILD_MODE_WARM )) {
+      // Solr registers the new searcher only after its listeners return - hold it back until the maps are built
+      waitForFieldMap( (currentSearcher == null) ? firstSearcherTimeout : warmTimeout );
+    }
+  }
+    
+  // Hands the searcher (reader already incRef'ed) to the builder. Returns false if the core is shutting down.
+  private boolean triggerBuild( SolrIndexSearcher searcher ) {
+    lastTriggerTime = System.currentTimeMillis( );
+    SolrIndexSearcher previous = pendingSearcher.getAndSet( searcher );
+    if (previous != null) {
+      // a build is already queued and will pick up the newest searcher - skip the older one
+      Log.debug( "coalescing field map rebuild" );
+      releaseSearcher( previous );
+      return true;
+    }
+      
+    firstTriggerTime = lastTriggerTime;
+    if (!scheduleBuild( getBuildDelay( ) )) {
+      releaseSearcher( pendingSearcher.getAndSet( null ) );
+      return false;
+    }
+    return true;
+  }
+    
+  private void waitForFieldMap( int timeout ) {
+    try {
+      Future<?> done = builderExecutor.submit( new Runnable( ) {
+        @Override
+        public void run( ) {  }
+      } );
+      if (timeout > 0) {
+        done.get( timeout, TimeUnit.MILLISECONDS );
+      }
+      else {
+        done.get( );
+      }
+    }
+    catch ( TimeoutException te ) {
+      // the build keeps going and is published when it is done
+      Log.warn( "Field map not built within " + timeout + " ms - registering searcher without waiting for it" );
+    }
+    catch ( InterruptedException ie ) {
+      Thread.currentThread( ).interrupt( );
+    }
+    catch ( ExecutionException ee ) {
+      Log.warn( "Waiting for field map got Exception " + ee );
+    }
+    catch ( RejectedExecutionException ree ) {
+      // core is shutting down
+    }
+  }
+    
+  private boolean scheduleBuild( long delay ) {
+    try {
+      builderExecutor.schedule( new Runnable( ) {
+        @Override
+        public void run( ) {
+          buildPendingFieldMap( );
+        }
+      }, delay, TimeUnit.MILLISECONDS );
+      return true;
+    }
+    catch ( RejectedExecutionException ree ) {
+      return false;
+    }
+  }
+    
+  // ms until the pending rebuild may start
+  private long getBuildDelay( ) {
+    // without a map there is nothing to wait for - warm builds hold back the searcher, so they don't wait either
+    if (fieldMapSnapshot.get( ) == null || buildMode.equals( BUILD_MODE_WARM )) return 0;
+      
+    long start = Math.max( lastTriggerTime + rebuildDelay, lastBuildTime + minRebuildInterval );
+    if (maxStaleness > 0) {
+      start = Math.min( start, firstTriggerTime + maxStaleness );
+    }
+    return start - System.currentTimeMillis( );
+  }
+    
+  private void buildPendingFieldMap( ) {
+    if (closed) {
+      releaseSearcher( pendingSearcher.getAndSet( null ) );
+      return;
+    }
+      
+    // more searchers may have come in since this build was scheduled
+    long delay = getBuildDelay( );
+    if (delay > 0 && scheduleBuild( delay )) {
+      return;
+    }
+      
+    SolrIndexSearcher searcher = pendingSearcher.getAndSet( null );
+    if (searcher == null || closed || pullingSnapshots) {
+      releaseSearcher( searcher );
+      return;
+    }
+    lastBuildTime = System.currentTimeMillis( );
+      
+    try {
+      synchronized( buildLock ) {
+        ++buildCount;
+        FieldMapSnapshot snapshot = buildFieldMap( searcher, distribShards.get( ) );
+        FieldMapSnapshot current = fieldMapSnapshot.get( );
+        if (snapshot.complete || current == null || !current.complete) {
+          publish( snapshot );
+        }
+        else {
+          // a map that lacks the values of some shards would drop filters the current map still makes
+          Log.warn( "keeping field map of index version " + current.indexVersion + " until all shards answer" );
+          releaseFieldMap( snapshot );
+        }
+        if (!snapshot.complete) {
+          scheduleRetry( searcher );
+        }
+        if (hardCommitSincePersist) {
+          hardCommitSincePersist = false;
+          persistFieldMap( );
+        }
+      }
+    }
+    catch ( Throwable t ) {
+      // keep serving the previous snapshot
+      Log.error( "Building field map failed: " + t, t );
+    }
+    finally {
+      releaseSearcher( searcher );
+    }
+  }
+    
+  // Builds the searcher's field map again after partialRetryInterval - unless a newer build has superseded it
+  private void scheduleRetry( final SolrIndexSearcher searcher ) {
+    searcher.getIndexReader( ).incRef( );
+    releaseSearcher( retrySearcher.getAndSet( searcher ) );
+    try {
+      builderExecutor.schedule( new Runnable( ) {
+        @Override
+        public void run( ) {
+          SolrIndexSearcher retry = retrySearcher.getAndSet( null );
+          if (retry == null) return;
+            
+          long version = retry.getIndexReader( ).getVersion( );
+          FieldMapSnapshot current = fieldMapSnapshot.get( );
+          if (closed || pendingSearcher.get( ) != null || (current != null && (current.indexVersion > version
+              || (current.indexVersion == version && current.complete)))) {
+            releaseSearcher( retry );
+            return;
+          }
+          Log.info( "retrying partial field map build for index version " + version );
+          triggerBuild( retry );
+        }
+      }, partialRetryInterval, TimeUnit.MILLISECONDS );
+    }
+    catch ( RejectedExecutionException ree ) {
+      releaseSearcher( retrySearcher.getAndSet( null ) );
+    }
+  }
+    
+  private void releaseSearcher( SolrIndexSearcher searcher ) {
+    if (searcher == null) return;
+    try {
+      searcher.getIndexReader( ).decRef( );
+    }
+    catch ( IOException ioe ) {
+      Log.warn( "Releasing searcher got Exception " + ioe );
+    }
+  }
+    
+  // must be called holding buildLock. An older index version never replaces a newer one.
+  private void publish( FieldMapSnapshot snapshot ) {
+    FieldMapSnapshot current = fieldMapSnapshot.get( );
+    if (current != null && current.indexVersion > snapshot.indexVersion) {
+      Log.debug( "discarding field map for outdated index version " + snapshot.indexVersion );
+      releaseFieldMap( snapshot );
+      return;
+    }
+    fieldMapSnapshot.set( snapshot );
+    releaseFieldMap( current );
+    if (rewriteCache != null) {
+      rewriteCache.clear( );
+    }
+  }
+    
+  // drops the snapshot's reference to its shared map - requests still using the snapshot are not affected
+  private void releaseFieldMap( FieldMapSnapshot snapshot ) {
+    if (snapshot != null && snapshot.vocabularyKey != null) {
+      fieldMapRegistry.release( snapshot.vocabularyKey );
     }
   }
     
+  // Returns the snapshot to use for this request, null if there is none. Shards that only come in on the request
+  // (no SolrCloud) are unknown to the background builder - a request with a new shard list hands the list to the
+  // builder and goes without autofiltering until the maps of those shards are built.
+  private FieldMapSnapshot getFieldMapSnapshot( ResponseBuilder rb ) {
+    FieldMapSnapshot snapshot = fieldMapSnapshot.get( );
+    String shards = getShardList( rb.req.getParams( ).get( ShardParams.SHARDS ) );
+    if (shards == null || pullingSnapshots || (snapshot != null && shards.equals( snapshot.shards ))) {
+      return snapshot;
+    }
+      
+    if (!shards.equals( distribShards.getAndSet( shards ) )) {
+      Log.info( "building field map for shards " + shards );
+      buildRegisteredSearcher( );
+    }
+    return null;
+  }
+    
+  // The shards param with the shards sorted, so that the same shards in another order are the same list
+  private static String getShardList( String shards ) {
+    if (shards == null) return null;
+      
+    List<String> shardList = StrUtils.splitSmart( shards, ",", true );
+    Collections.sort( shardList );
+    return StrUtils.join( shardList, ',' );
+  }
+    
+  // for tests: waits until the builder thread has processed every searcher handed to it so far
+  void waitForFieldMap( ) {
+    waitForFieldMap( 0 );
+  }
+    
+  // for tests: holds up the builder thread until resume is counted down - builds handed to it wait until then
+  void blockBuilder( final CountDownLatch resume ) {
+    builderExecutor.submit( new Runnable( ) {
+      @Override
+      public void run( ) {
+        try {
+          resume.await( );
+        }
+        catch ( InterruptedException ie ) {
+          Thread.currentThread( ).interrupt( );
+        }
+      }
+    } );
+  }
+    
+  // for tests: the current field map, null if none was built yet
+  FieldValueMap getFieldValueMap( ) {
+    FieldMapSnapshot snapshot = fieldMapSnapshot.get( );
+    return (snapshot != null) ? snapshot.fieldMap : null;
+  }
+    
   @Override
   public void prepare( ResponseBuilder rb ) throws IOException
   {
@@ -288,11 +984,10 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     }
       
     Log.info( "prepare ..." );
-    if (initFieldMap) {
-      synchronized( this ) {
-        buildFieldMap( rb );
-        initFieldMap = false;
-      }
+    FieldMapSnapshot snapshot = getFieldMapSnapshot( rb );
+    if (snapshot == null) {
+      Log.debug( "field map has not been built yet - don't process!" );
+      return;
     }
       
     int mintok = 1;
@@ -314,85 +1009,140 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
       return;
     }
       
-    // tokenize the query string, if any part of it matches, remove the token from the list and
-    // add a filter query with <categoryField>:value:
-    ArrayList<char[]> queryTokens = tokenize( qStr );
+    String useBoost = params.get( BOOST_PARAM );
+    String rewriteKey = (rewriteCache != null) ? getRewriteKey( qStr, useBoost, mintok, rb.isDistrib ) : null;
+    Rewrite rewrite = (rewriteKey != null) ? rewriteCache.get( rewriteKey, snapshot ) : null;
+    if (rewrite == null) {
+      // tokenize the query string, if any part of it matches, remove the token from the list and
+      // add a filter query with <categoryField>:value:
+      QueryTokens queryTokens = tokenize( qStr );
+      rewrite = (queryTokens.size( ) >= mintok) ? findPattern( snapshot, queryTokens, rb, useBoost ) : Rewrite.NONE;
+      if (rewriteKey != null) {
+        rewriteCache.put( rewriteKey, snapshot, rewrite, rewrite.getWeight( ) );
+      }
+    }
+    else {
+      Log.debug( "rewrite of '" + qStr + "' is cached" );
+    }
       
-    if (queryTokens.size( ) >= mintok) {
+    if (rewrite.q != null) {
       ModifiableSolrParams modParams = new ModifiableSolrParams( params );
-      if (findPattern( queryTokens, rb, modParams )) {
-        req.setParams( modParams );
+      modParams.set( "q", rewrite.q );
+      for (String fq : rewrite.filters ) {
+        modParams.add( "fq", fq );
+      }
+      req.setParams( modParams );
+    }
+    // the Rewrite may be cached - each request gets its own copies of the mutable query objects
+    if (rewrite.query != null) {
+      req.getContext( ).put( AutoFilterQParserPlugin.QUERY, copyQuery( rewrite.query ) );
+    }
+    if (!rewrite.filterQueries.isEmpty( )) {
+      List<Query> filters = (rb.getFilters( ) != null) ? new ArrayList<Query>( rb.getFilters( ) ) : new ArrayList<Query>( );
+      for (Query fq : rewrite.filterQueries ) {
+        filters.add( copyQuery( fq ) );
+      }
+      rb.setFilters( filters );
+    }
+    if (rewrite.shardBits != null) {
+      pruneShards( snapshot, rb, rewrite.shardBits );
+    }
+  }
+    
+  // The rewrite depends on the tokens of the query only - whitespace is normalized - and on the afb and mt params.
+  // Distributed requests also get the shards to prune.
+  private String getRewriteKey( String qStr, String useBoost, int mintok, boolean isDistrib ) {
+    StringBuilder strb = new StringBuilder( qStr.length( ) + 16 );
+    boolean space = false;
+    for (int i = 0; i < qStr.length( ); i++) {
+      char c = qStr.charAt( i );
+      if (Character.isWhitespace( c )) {
+        space = strb.length( ) > 0;
+      }
+      else {
+        if (space) strb.append( ' ' );
+        strb.append( c );
+        space = false;
       }
     }
+    strb.append( '\u0000' ).append( (useBoost != null) ? useBoost : "" );
+    strb.append( '\u0000' ).append( mintok );
+    if (isDistrib) {
+      strb.append( '\u0000' ).append( "distrib" );
+    }
+    return strb.toString( );
   }
     
-  private boolean findPattern( ArrayList<char[]> queryTokens, ResponseBuilder rb, ModifiableSolrParams modParams ) throws IOException {
+  private Rewrite findPattern( FieldMapSnapshot snapshot, QueryTokens queryTokens, ResponseBuilder rb, String useBoost ) throws IOException {
     Log.debug( "findPattern " );
 
     HashSet<Integer> usedTokens = new HashSet<Integer>( );
     HashMap<String,ArrayList<String>> fieldMap = new HashMap<String,ArrayList<String>>( );
     HashMap<String,int[]> fieldPositionMap = new HashMap<String,int[]>( );
     HashMap<String,int[]> entityPositionMap = (verbModifierList != null) ? new HashMap<String,int[]>()  : null;
+    // indexed values of the pairs of each fieldMap entry - verb modifiers rewrite the fieldMap, so no pruning with them
+    HashMap<String,HashSet<String>> pairValues = (snapshot.shardPresence != null && rb.isDistrib && entityPositionMap == null)
+                                               ? new HashMap<String,HashSet<String>>( ) : null;
+    // indexed values of each fieldMap entry, for the filter query objects. Filters set on the ResponseBuilder don't
+    // go to the shards, so distributed requests get strings.
+    HashMap<String,ArrayList<String>> nativeValues = (nativeQueryParser != null && !rb.isDistrib && entityPositionMap == null)
+                                                   ? new HashMap<String,ArrayList<String>>( ) : null;
       
-    String longestPhraseField = null;
+    PhraseMatcher matcher = snapshot.fieldMap.acquireMatcher( );
     int startToken = 0;
-    int lastEndToken = 0;
     while ( startToken < queryTokens.size() ) {
       Log.debug( "startToken = " + startToken );
-      int endToken = startToken;
-        
-      while ( endToken < queryTokens.size( ) ) {
+      int lastEndToken = matcher.match( queryTokens, startToken );
+      String longestPhraseField = null;
+      int longestPhraseOrd = -1;
+      if (lastEndToken >= 0) {
         // FieldName can be comma separated if there are more than one field name for a set of tokens
-        String fieldName = getFieldNameFor( queryTokens, startToken, endToken );
-        if ( fieldName != null ) {
-          longestPhraseField = fieldName;
-          lastEndToken = endToken;
-        }
-        else if ( longestPhraseField != null ) {
-          break;
-        }
-        ++endToken;
+        longestPhraseOrd = matcher.getOrd( );
+        longestPhraseField = snapshot.outputs.getFieldKey( longestPhraseOrd );
       }
         
       if (longestPhraseField != null) {
-        // create matching phrase from startToken -> endToken
-        String phrase = getPhrase( queryTokens, startToken, lastEndToken );
-        Log.debug( "get Indexed Term for " + phrase );
-        String indexedTerm = getMappedFieldName( termMap, phrase.toLowerCase( ));
-        if (indexedTerm == null) {
-          indexedTerm = getMappedFieldName( termMap, getStemmed( phrase ));
-        }
-        if (indexedTerm != null) {
-          indexedTerm = indexedTerm.replace( '_', ' ' );
-          if (indexedTerm.indexOf( " " ) > 0 ) {
-            indexedTerm = "\"" + indexedTerm + "\"";
-          }
+        // the values come with the field names of the longest phrase match - quoted and escaped at build time
+        String[] indexedTerms = snapshot.outputs.getValues( longestPhraseOrd );
+        if (Log.isDebugEnabled( )) {
+          Log.debug( "indexed Terms for " + getPhrase( queryTokens, startToken, lastEndToken ) + " are " + Arrays.toString( indexedTerms ) );
+        }
+        if (indexedTerms.length > 0) {
           ArrayList<String>valList = fieldMap.get( longestPhraseField );
           if (valList == null) {
             valList = new ArrayList<String>( );
             fieldMap.put( longestPhraseField, valList );
           }
             
-          Log.info( "indexedTerm: " + indexedTerm );
           int[] entityPosition = null;
           if (entityPositionMap != null) {
             entityPosition = new int[2];
             entityPosition[0] = startToken;
-            entityPosition[1] = endToken-1;
+            entityPosition[1] = lastEndToken;
           }
           
-          Log.debug( "indexedTerm: " + indexedTerm );
-          if (indexedTerm.indexOf( fieldDelim ) > 0)
-          {
-            String[] indexedTerms = indexedTerm.split( fieldSplitExpr );
-            for (int t = 0; t < indexedTerms.length; t++) {
-              valList.add( indexedTerms[t] );
-              if (entityPositionMap != null) entityPositionMap.put( indexedTerms[t], entityPosition );
+          for (int t = 0; t < indexedTerms.length; t++) {
+            valList.add( indexedTerms[t] );
+            if (entityPositionMap != null) entityPositionMap.put( indexedTerms[t], entityPosition );
+          }
+          if (nativeValues != null) {
+            ArrayList<String> values = nativeValues.get( longestPhraseField );
+            if (values == null) {
+              values = new ArrayList<String>( );
+              nativeValues.put( longestPhraseField, values );
             }
+            values.addAll( Arrays.asList( snapshot.outputs.getIndexedValues( longestPhraseOrd ) ) );
           }
-          else {
-            valList.add( indexedTerm );
-            if (entityPositionMap != null) entityPositionMap.put( indexedTerm, entityPosition );
+            
+          if (pairValues != null) {
+            HashSet<String> values = pairValues.get( longestPhraseField );
+            if (values == null) {
+              values = new HashSet<String>( );
+              pairValues.put( longestPhraseField, values );
+            }
+            for (String value : snapshot.outputs.getIndexedValues( longestPhraseOrd )) {
+              values.add( value );
+            }
           }
             
           // save startToken and lastEndToken so can use for boolean operator context
@@ -410,7 +1160,6 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
             posArray[1] = lastEndToken;
           }
             
-          longestPhraseField = null;
           for (int i = startToken; i <= lastEndToken; i++) {
             Log.debug( "adding used token at " + i );
             usedTokens.add( new Integer( i ) );
@@ -422,24 +1171,24 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
         ++startToken;
       }
     }
+    snapshot.fieldMap.releaseMatcher( matcher );
       
     if (usedTokens.size( ) > 0) {
+      Rewrite rewrite = new Rewrite( );
         
       // filter field maps based on verbs here:
       if (entityPositionMap != null) {
         filterFieldMap( queryTokens, fieldMap, entityPositionMap, fieldPositionMap );
       }
         
-      String useBoost = modParams.get( BOOST_PARAM );
       Integer boostFactor = (useBoost != null) ? new Integer( useBoost ) : this.boostFactor;
       if (boostFactor == null) {
         StringBuilder qbuilder = new StringBuilder( );
         if (usedTokens.size( ) < queryTokens.size( ) ) {
           for (int i = 0; i < queryTokens.size(); i++) {
             if (boostFactor != null || usedTokens.contains( new Integer( i ) ) == false ) {
-              char[] token = queryTokens.get( i );
               if (qbuilder.length() > 0) qbuilder.append( " " );
-              qbuilder.append( token );
+              queryTokens.appendTo( qbuilder, i );
             }
           }
         }
@@ -448,24 +1197,33 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
         if (qbuilder.length() == 0 && fieldMap.size() > 0) {
           // build a filter query -
           // EH: can't do this if dismax
-          Log.debug( "setting q = *:*" );
-          modParams.set( "q", "*:*" );
-          for (String fieldName : fieldMap.keySet() ) {
-            String fq = getFilterQuery( rb, fieldName, fieldMap.get( fieldName ), fieldPositionMap.get( fieldName ), queryTokens, "" );
-            Log.info( "adding filter query: " + fq );
-            modParams.add( "fq", fq );
+          if (nativeValues != null) {
+            Log.debug( "setting q = {!" + nativeQueryParser + "}" );
+            rewrite.q = "{!" + nativeQueryParser + "}";
+            rewrite.query = new MatchAllDocsQuery( );
+          }
+          else {
+            Log.debug( "setting q = *:*" );
+            rewrite.q = "*:*";
           }
+          addFilters( snapshot, rb, rewrite, fieldMap, fieldPositionMap, nativeValues, pairValues, queryTokens );
+        }
+        else if (qbuilder.length() > 0 && fieldMap.size() > 0 && freeTextMode.equals( FREE_TEXT_FILTER )) {
+          // the free text is the query, the fielded data filters it
+          Log.info( "setting q = '" + qbuilder.toString( ) + "'" );
+          rewrite.q = qbuilder.toString( );
+          addFilters( snapshot, rb, rewrite, fieldMap, fieldPositionMap, nativeValues, pairValues, queryTokens );
         }
         else if (qbuilder.length() > 0 && fieldMap.size() > 0) {
           // build a boolean query for the fielded data, OR with remainder of query
           StringBuilder boolQ = new StringBuilder( );
-          for (String fieldName : fieldMap.keySet() ) {
+          for (String fieldName : getFieldNames( fieldMap ) ) {
             if (boolQ.length() > 0) boolQ.append( " AND " );
-            boolQ.append( getFilterQuery( rb, fieldName, fieldMap.get( fieldName ), fieldPositionMap.get( fieldName ), queryTokens, "" ) );
+            boolQ.append( getFilterQuery( snapshot, rb, fieldName, fieldMap.get( fieldName ), fieldPositionMap.get( fieldName ), queryTokens, "" ) );
           }
           String q = qbuilder.toString( ) + " (" + boolQ.toString() + ")";
           Log.info( "setting q = '" + q + "'" );
-          modParams.set( "q", q );
+          rewrite.q = q;
         }
       }
       else { // boostFactor is NOT null
@@ -473,39 +1231,134 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
         StringBuilder bbuilder = new StringBuilder( );
         String boostSuffix = "^" + boostFactor.toString( );
         bbuilder.append( getPhrase( queryTokens, 0, queryTokens.size() - 1, " " ) );
-        for (String fieldName : fieldMap.keySet( ) ) {
+        for (String fieldName : getFieldNames( fieldMap ) ) {
           bbuilder.append( " " );
-          bbuilder.append( getFilterQuery( rb, fieldName, fieldMap.get( fieldName ), fieldPositionMap.get( fieldName ), queryTokens, boostSuffix ) );
+          bbuilder.append( getFilterQuery( snapshot, rb, fieldName, fieldMap.get( fieldName ), fieldPositionMap.get( fieldName ), queryTokens, boostSuffix ) );
         }
         Log.info( "setting q = '" + bbuilder.toString()  + "'" );
-        modParams.set( "q", bbuilder.toString( ) );
+        rewrite.q = bbuilder.toString( );
       }
-      return true;
+      return rewrite;
     }
     
-    return false;
+    return Rewrite.NONE;
+  }
+    
+  // One filter per fieldMap entry, so the filters of the fields are reused across queries. Query objects if the
+  // indexed values are given, query strings otherwise.
+  private void addFilters( FieldMapSnapshot snapshot, ResponseBuilder rb, Rewrite rewrite, HashMap<String,ArrayList<String>> fieldMap,
+                           HashMap<String,int[]> fieldPositionMap, HashMap<String,ArrayList<String>> nativeValues,
+                           HashMap<String,HashSet<String>> pairValues, QueryTokens queryTokens ) throws IOException {
+    if (nativeValues != null) {
+      IndexSchema schema = rb.req.getSchema( );
+      for (String fieldName : getFieldNames( fieldMap ) ) {
+        Query fq = getFilter( snapshot, schema, fieldName, nativeValues.get( fieldName ), fieldPositionMap.get( fieldName ), queryTokens );
+        Log.info( "adding filter: " + fq );
+        rewrite.filterQueries.add( fq );
+      }
+      return;
+    }
+      
+    for (String fieldName : getFieldNames( fieldMap ) ) {
+      String fq = getFilterQuery( snapshot, rb, fieldName, fieldMap.get( fieldName ), fieldPositionMap.get( fieldName ), queryTokens, "" );
+      Log.info( "adding filter query: " + fq );
+      rewrite.filters.add( fq );
+    }
+    if (pairValues != null) {
+      rewrite.shardBits = getShardBits( snapshot, fieldMap, pairValues );
+    }
   }
     
-  private String getPhrase( ArrayList<char[]> tokens, int startToken, int endToken ) {
+  // The shards of the snapshot's ShardPresence that can match all filter queries, null if any shard can. A filter
+  // matches one of its values in one of its fields, so a shard that has none of these values can't match it.
+  private long[] getShardBits( FieldMapSnapshot snapshot, HashMap<String,ArrayList<String>> fieldMap,
+                               HashMap<String,HashSet<String>> pairValues ) {
+    ShardPresence presence = snapshot.shardPresence;
+    long[] shardBits = null;
+    for (String fieldName : fieldMap.keySet( ) ) {
+      ArrayList<String> valList = getCanonicalValues( fieldMap.get( fieldName ) );
+      if (valList.size( ) == 1 && valList.get( 0 ).indexOf( " " ) > 0 && getSingleTermQuery( snapshot, valList.get( 0 ) ) != null) {
+        // the filter also matches the single term equivalent, which can be anywhere
+        continue;
+      }
+        
+      long[] filterBits = presence.newBits( );
+      for (String field : fieldName.split( fieldSplitExpr ) ) {
+        for (String value : pairValues.get( fieldName ) ) {
+          presence.addShards( field, value, filterBits );
+        }
+      }
+      if (shardBits == null) {
+        shardBits = filterBits;
+      }
+      else {
+        for (int i = 0; i < shardBits.length; i++) {
+          shardBits[i] &= filterBits[i];
+        }
+      }
+    }
+    return shardBits;
+  }
+    
+  // Restricts a distributed request to the shards in shardBits. Only reads the snapshot: the shards whose values may
+  // have changed since the build are marked stale by checkShardVersions, and are kept.
+  private void pruneShards( FieldMapSnapshot snapshot, ResponseBuilder rb, long[] shardBits ) {
+    ShardPresence presence = snapshot.shardPresence;
+    HashMap<String,Integer> shardPositions = new HashMap<String,Integer>( );
+    for (int i = 0; i < presence.shards.length; i++) {
+      shardPositions.put( presence.shards[i], i );
+    }
+    boolean[] keep = new boolean[ rb.shards.length ];
+    int nKept = 0;
+    for (int i = 0; i < rb.shards.length; i++) {
+      // keep the shards the map knows nothing about
+      Integer pos = (rb.shards[i] != null) ? shardPositions.get( rb.shards[i] ) : null;
+      if (pos == null || ShardPresence.hasShard( shardBits, pos ) || presence.isStale( pos )) {
+        keep[i] = true;
+        ++nKept;
+      }
+    }
+    // if no shard has the values, let the search find nothing
+    if (nKept == 0 || nKept == rb.shards.length) return;
+      
+    boolean withSlices = rb.slices != null && rb.slices.length == rb.shards.length;
+    ArrayList<String> shards = new ArrayList<String>( );
+    ArrayList<String> slices = new ArrayList<String>( );
+    for (int i = 0; i < rb.shards.length; i++) {
+      if (keep[i]) {
+        shards.add( rb.shards[i] );
+        if (withSlices) slices.add( rb.slices[i] );
+      }
+    }
+      
+    Log.info( "pruned shards from " + rb.shards.length + " to " + shards );
+    rb.shards = shards.toArray( new String[ shards.size( ) ] );
+    if (withSlices) {
+      rb.slices = slices.toArray( new String[ slices.size( ) ] );
+    }
+  }
+    
+  private String getPhrase( QueryTokens tokens, int startToken, int endToken ) {
     return getPhrase( tokens, startToken, endToken, "_" );
   }
     
-  private String getPhrase( ArrayList<char[]> tokens, int startToken, int endToken, String tokenSep ) {
+  private String getPhrase( QueryTokens tokens, int startToken, int endToken, String tokenSep ) {
     StringBuilder strb = new StringBuilder( );
     for (int i = startToken; i <= endToken; i++) {
       if (i > startToken) strb.append( tokenSep );
 
-      strb.append( tokens.get( i ) );
+      tokens.appendTo( strb, i );
     }
       Log.debug( "getPhrase returns " + strb.toString( ) );
     return strb.toString( );
   }
     
-  private String getFilterQuery( ResponseBuilder rb, String fieldName, ArrayList<String> valList,
-                                 int[] termPosRange, ArrayList<char[]> queryTokens, String suffix) {
+  private String getFilterQuery( FieldMapSnapshot snapshot, ResponseBuilder rb, String fieldName, ArrayList<String> valList,
+                                 int[] termPosRange, QueryTokens queryTokens, String suffix) {
     if (fieldName.indexOf( fieldDelim ) > 0) {
-      return getFilterQuery( rb, fieldName.split( fieldSplitExpr ), valList, termPosRange, queryTokens, suffix );
+      return getFilterQuery( snapshot, rb, getFieldNames( fieldName ), valList, termPosRange, queryTokens, suffix );
     }
+    valList = getCanonicalValues( valList );
     if (valList.size() == 1) {
       // check if valList[0] is multi-term - if so, check if there is a single term equivalent
       // if this returns non-null, create an OR query with single term version
@@ -513,7 +1366,7 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
       String term = valList.get( 0 );
         
       if (term.indexOf( " " ) > 0) {
-        String singleTermQuery = getSingleTermQuery( term );
+        String singleTermQuery = getSingleTermQuery( snapshot, term );
         if (singleTermQuery != null) {
           StringBuilder strb = new StringBuilder( );
           // EH: possible meta-escaping problem if value includes {!field f=<fieldName>}value
@@ -531,200 +1384,937 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     else {
       SolrIndexSearcher searcher = rb.req.getSearcher();
       IndexSchema schema = searcher.getSchema();
-      SchemaField field = schema.getField(fieldName);
-      boolean useAnd = field.multiValued() && useAndForMultiValuedFields;
-      // if query has 'or' in it and or is at a position 'within' the values for this field ...
-      if (useAnd) {
-        for (int i = termPosRange[0] + 1; i < termPosRange[1]; i++ ) {
-          char[] qToken = queryTokens.get( i );
-          // is the token 'or'?
-          if (qToken.length == 2 && qToken[0] == 'o' && qToken[1] == 'r' ) {
-            useAnd = false;
-            break;
+      boolean useAnd = useAnd( schema.getField( fieldName ), termPosRange, queryTokens );
+        
+      StringBuilder orQ = new StringBuilder( );
+      for (String val : valList ) {
+        if (orQ.length() > 0) orQ.append( (useAnd ? " AND " : " OR ") );
+        orQ.append( val );
+      }
+      return fieldName + ":(" + orQ.toString() + ")" + suffix;
+    }
+  }
+    
+  private boolean useAnd( SchemaField field, int[] termPosRange, QueryTokens queryTokens ) {
+    boolean useAnd = field.multiValued() && useAndForMultiValuedFields;
+    // if query has 'or' in it and or is at a position 'within' the values for this field ...
+    if (useAnd) {
+      for (int i = termPosRange[0] + 1; i < termPosRange[1]; i++ ) {
+        // is the token 'or'?
+        if (queryTokens.equals( i, "or" )) {
+          useAnd = false;
+          break;
+        }
+      }
+    }
+    return useAnd;
+  }
+    
+  // The filter of getFilterQuery( ) as a query object, made from the indexed values - nothing is parsed. Equal
+  // rewrites give equal filters, so they hit the filterCache.
+  private Query getFilter( FieldMapSnapshot snapshot, IndexSchema schema, String fieldName, ArrayList<String> values,
+                           int[] termPosRange, QueryTokens queryTokens ) throws IOException {
+    if (fieldName.indexOf( fieldDelim ) > 0) {
+      BooleanQuery query = new BooleanQuery( );
+      for (String field : getFieldNames( fieldName ) ) {
+        query.add( getFilter( snapshot, schema, field, values, termPosRange, queryTokens ), BooleanClause.Occur.SHOULD );
+      }
+      return query;
+    }
+      
+    values = getCanonicalValues( values );
+    SchemaField field = schema.getField( fieldName );
+    if (values.size( ) == 1) {
+      String value = values.get( 0 );
+      Query query = getTermQuery( field, value );
+      if (value.indexOf( ' ' ) > 0) {
+        Query singleTermQuery = getSingleTermFilter( snapshot, schema, value );
+        if (singleTermQuery != null) {
+          BooleanQuery composite = new BooleanQuery( );
+          composite.add( query, BooleanClause.Occur.SHOULD );
+          composite.add( singleTermQuery, BooleanClause.Occur.SHOULD );
+          return composite;
+        }
+      }
+      return query;
+    }
+      
+    if (useAnd( field, termPosRange, queryTokens )) {
+      BooleanQuery query = new BooleanQuery( );
+      for (String value : values ) {
+        query.add( getTermQuery( field, value ), BooleanClause.Occur.MUST );
+      }
+      return query;
+    }
+    return getTermsQuery( field, values );
+  }
+    
+  // A copy that shares nothing mutable with the query: Query.clone( ) copies the clause list of a BooleanQuery, but
+  // not the clause queries.
+  static Query copyQuery( Query query ) {
+    if (!(query instanceof BooleanQuery)) {
+      return query.clone( );
+    }
+      
+    BooleanQuery source = (BooleanQuery)query;
+    BooleanQuery copy = new BooleanQuery( source.isCoordDisabled( ) );
+    copy.setMinimumNumberShouldMatch( source.getMinimumNumberShouldMatch( ) );
+    copy.setBoost( source.getBoost( ) );
+    for (BooleanClause clause : source.clauses( ) ) {
+      copy.add( copyQuery( clause.getQuery( ) ), clause.getOccur( ) );
+    }
+    return copy;
+  }
+    
+  // getSingleTermQuery( ) as a query object: every word of the value must match one of its values
+  private Query getSingleTermFilter( FieldMapSnapshot snapshot, IndexSchema schema, String multiTerm ) throws IOException {
+    BooleanQuery query = new BooleanQuery( );
+    for (String term : multiTerm.split( " " ) ) {
+      int ord = getFieldValuesFor( snapshot, term );
+      if (ord < 0) return null;
+        
+      List<String> values = getCanonicalValues( Arrays.asList( snapshot.outputs.getIndexedValues( ord ) ) );
+      BooleanQuery fieldsQuery = new BooleanQuery( );
+      for (String fieldName : getFieldNames( snapshot.outputs.getFieldKey( ord ) ) ) {
+        fieldsQuery.add( getTermsQuery( schema.getField( fieldName ), values ), BooleanClause.Occur.SHOULD );
+      }
+      query.add( fieldsQuery, BooleanClause.Occur.MUST );
+    }
+    return query;
+  }
+    
+  private Query getTermQuery( SchemaField field, String value ) {
+    return field.getType( ).getFieldQuery( null, field, value );
+  }
+    
+  // any of the values - one TermsQuery if the field has terms
+  private Query getTermsQuery( SchemaField field, List<String> values ) {
+    if (values.size( ) == 1) return getTermQuery( field, values.get( 0 ) );
+      
+    ArrayList<Term> terms = new ArrayList<Term>( );
+    BooleanQuery query = new BooleanQuery( );
+    for (String value : values ) {
+      Query termQuery = getTermQuery( field, value );
+      if (termQuery instanceof TermQuery) {
+        terms.add( ((TermQuery)termQuery).getTerm( ) );
+      }
+      query.add( termQuery, BooleanClause.Occur.SHOULD );
+    }
+    return (terms.size( ) == values.size( )) ? new TermsQuery( terms ) : query;
+  }
+    
+  private String getFilterQuery( FieldMapSnapshot snapshot, ResponseBuilder rb, String[] fieldNames, ArrayList<String> valList,
+                                 int[] termPosRange, QueryTokens queryTokens, String suffix) {
+    StringBuilder filterQBuilder = new StringBuilder( );
+    for (int i = 0; i < fieldNames.length; i++) {
+      if (i > 0) filterQBuilder.append( " OR " );
+      filterQBuilder.append( getFilterQuery( snapshot, rb, fieldNames[i], valList, termPosRange, queryTokens, suffix ) );
+    }
+    return "(" + filterQBuilder.toString() + ")";
+  }
+    
+  private String getSingleTermQuery( FieldMapSnapshot snapshot, String multiTermValue ) {
+        
+    String multiTerm = multiTermValue;
+    if (multiTermValue.startsWith( "\"" )) {
+      multiTerm = new String( multiTermValue.substring( 1, multiTermValue.lastIndexOf( "\"" )));
+    }
+    Log.debug( "getSingleTermQuery " + multiTerm + "" );
+        
+    try {
+      StringBuilder strb = new StringBuilder( );
+            
+      String[] terms = multiTerm.split( " " );
+      for (int i = 0; i < terms.length; i++) {
+        if (i > 0) strb.append( " AND " );
+                
+        int ord = getFieldValuesFor( snapshot, terms[i] );
+        if (ord < 0) return null;
+        String fieldName = snapshot.outputs.getFieldKey( ord );
+        String indexedTerm = getValueQuery( snapshot.outputs.getValues( ord ) );
+        Log.debug( "fieldName for " + terms[i].toLowerCase( ) + " is " + fieldName );
+                
+        if (fieldName.indexOf( fieldDelim ) > 0) {
+          String[] fields = getFieldNames( fieldName );
+          strb.append( "(" );
+          for (int f = 0; f < fields.length; f++) {
+            if (f > 0) strb.append( " OR " );
+            strb.append( fields[f] ).append( ":" ).append( indexedTerm );
           }
+          strb.append( ")" );
+        }
+        else {
+          strb.append( fieldName ).append( ":" ).append( indexedTerm );
+        }
+      }
+            
+      Log.debug( "getSingleTermQuery returns: '" + strb.toString( ) + "'" );
+      return strb.toString( );
+    }
+    catch (IOException ioe ) {
+      return null;
+    }
+  }
+    
+  // the value, or the values ORed if the term maps to several
+  private String getValueQuery( String[] values ) {
+    if (values.length == 1) return values[0];
+      
+    StringBuilder strb = new StringBuilder( "(" );
+    for (String value : getCanonicalValues( Arrays.asList( values ) ) ) {
+      if (strb.length( ) > 1) strb.append( " OR " );
+      strb.append( value );
+    }
+    return strb.append( ")" ).toString( );
+  }
+    
+  // The rewrites are canonical: fields and values are emitted sorted and without duplicates, so queries that match
+  // the same values - synonyms, other word orders, a repeated value - give the same q and fq strings and hit the
+  // same filterCache and queryResultCache entries.
+  private Collection<String> getFieldNames( HashMap<String,ArrayList<String>> fieldMap ) {
+    return new TreeSet<String>( fieldMap.keySet( ) );
+  }
+    
+  private String[] getFieldNames( String fieldKey ) {
+    String[] fieldNames = fieldKey.split( fieldSplitExpr );
+    Arrays.sort( fieldNames );
+    return fieldNames;
+  }
+    
+  private ArrayList<String> getCanonicalValues( Collection<String> values ) {
+    return new ArrayList<String>( new TreeSet<String>( values ) );
+  }
+    
+  // ordinal of the (field, value) pairs of the phrase, -1 if it is not in the map
+  private int getFieldValuesFor( FieldMapSnapshot snapshot, String phrase )  throws IOException {
+    Log.debug( "getFieldValuesFor '" + phrase + "'" );
+    if ("*".equals( phrase) || "* *".equals( phrase )) return -1;
+      
+    int ord = snapshot.fieldMap.lookup( phrase );
+    if (ord < 0) {
+      Log.debug( "No FieldName for " + phrase );
+    }
+    return ord;
+  }
+    
+  // must be called holding buildLock (segmentVocabularies)
+  private FieldMapSnapshot buildFieldMap( SolrIndexSearcher searcher, String shards ) throws IOException {
+    Log.debug( "buildFieldMap" );
+    long start = System.currentTimeMillis( );
+    // build a synonym map from the unique terms of each String field -
+    // for each field value: lower case, stemmed, lookup synonyms from synonyms.txt - map to fieldValue
+    ArrayList<String> searchFields = getStringFields( searcher );
+    final List<Vocabulary> vocabularies = new ArrayList<Vocabulary>( );
+    vocabularies.addAll( getSegmentVocabularies( searcher, searchFields ) );
+    ArrayList<String> failedShards = new ArrayList<String>( );
+    LinkedHashMap<String,ShardVocabulary> vocabulariesByShard = getShardVocabularies( searcher, shards, searchFields, failedShards );
+    try {
+      vocabularies.addAll( vocabulariesByShard.values( ) );
+      return buildFieldMap( searcher, shards, searchFields, vocabularies, vocabulariesByShard, failedShards, start );
+    }
+    finally {
+      for (Map.Entry<String,ShardVocabulary> entry : vocabulariesByShard.entrySet( ) ) {
+        // the shards without a version are fetched again by the next build
+        if (shardVocabularies.get( entry.getKey( ) ) != entry.getValue( )) {
+          entry.getValue( ).delete( );
+        }
+      }
+    }
+  }
+    
+  private FieldMapSnapshot buildFieldMap( SolrIndexSearcher searcher, String shards, ArrayList<String> searchFields,
+                                          final List<Vocabulary> vocabularies,
+                                          LinkedHashMap<String,ShardVocabulary> vocabulariesByShard,
+                                          List<String> failedShards, long start ) throws IOException {
+    boolean complete = failedShards.isEmpty( );
+    // with shards missing, a value could be on shards the presence doesn't know of
+    ShardPresence shardPresence = (pruneShards && complete && vocabulariesByShard.size( ) > 0)
+                                ? getShardPresence( vocabulariesByShard, searchFields ) : null;
+    long[] fieldFingerprints = getFieldFingerprints( searchFields, vocabularies );
+    // a partial map is never shared - other cores must not pick up the missing values
+    String vocabularyKey = complete ? getVocabularyKey( searchFields, fieldFingerprints ) : null;
+      
+    // Most commits don't touch the values of the String fields (e.g. price or stock updates) - keep the current map.
+    // Otherwise other cores of the collection on this node may have built the map already.
+    FieldMapSnapshot current = fieldMapSnapshot.get( );
+    FieldValueMap shared = null;
+    if (complete && current != null && current.complete && current.searchFields.equals( searchFields )
+        && Arrays.equals( fieldFingerprints, current.fieldFingerprints )) {
+      // the new snapshot takes its own reference to the map - registered again if it was not shared yet
+      shared = (vocabularyKey != null) ? fieldMapRegistry.register( vocabularyKey, current.fieldMap ) : current.fieldMap;
+    }
+    else if (vocabularyKey != null) {
+      shared = fieldMapRegistry.acquire( vocabularyKey );
+    }
+    if (shared != null) {
+      FieldMapSnapshot snapshot = new FieldMapSnapshot( shared, shared.getOutputs( fieldDelim ), searchFields, shards,
+                                                        searcher.getIndexReader( ).getVersion( ),
+                                                        searcher.getIndexReader( ).getIndexCommit( ).getGeneration( ),
+                                                        getSegmentsKey( searcher ), fieldFingerprints, vocabularyKey, complete,
+                                                      shardPresence );
+      Log.info( "field values unchanged - using field map for index version " + snapshot.indexVersion + " ("
+              + (System.currentTimeMillis( ) - start) + " ms)" );
+      return snapshot;
+    }
+      
+    FieldMapBuilder builder = new FieldMapBuilder( buildRamBufferMB * 1024L * 1024L, buildThreads );
+    try {
+      // the entries of each field are computed in parallel, each field with its own writer - the builder merges them
+      // in field order, so the maps are the same as when built on one thread. The entries go straight into the
+      // bounded buffers of the writers.
+      ArrayList<Callable<Void>> fieldTasks = new ArrayList<Callable<Void>>( );
+      for (final String searchField : searchFields ) {
+        final FieldMapBuilder.FieldWriter writer = builder.newWriter( );
+        fieldTasks.add( new Callable<Void>( ) {
+          @Override
+          public Void call( ) throws IOException {
+            Log.debug( "adding searchField " + searchField );
+            addFieldEntries( writer, searchField, vocabularies );
+            writer.finish( );
+            return null;
+          }
+        } );
+      }
+      invokeAll( fieldTasks );
+        
+      builder.build( );
+    }
+    finally {
+      builder.close( );
+    }
+      
+    FieldValueMap fieldMap = builder.getFieldValueMap( );
+    if (vocabularyKey != null) {
+      // another core may have registered the same map while this one was built
+      fieldMap = fieldMapRegistry.register( vocabularyKey, fieldMap );
+    }
+    FieldMapSnapshot snapshot = new FieldMapSnapshot( fieldMap, fieldMap.getOutputs( fieldDelim ), searchFields, shards,
+                                                      searcher.getIndexReader( ).getVersion( ),
+                                                      searcher.getIndexReader( ).getIndexCommit( ).getGeneration( ),
+                                                      getSegmentsKey( searcher ), fieldFingerprints, vocabularyKey, complete,
+                                                      shardPresence );
+    if (complete) {
+      Log.info( "built field map for index version " + snapshot.indexVersion + " in " + (System.currentTimeMillis( ) - start) + " ms" );
+    }
+    else {
+      Log.warn( "built partial field map for index version " + snapshot.indexVersion + " in " + (System.currentTimeMillis( ) - start)
+              + " ms - no terms from shards " + failedShards );
+    }
+    return snapshot;
+  }
+    
+  private ShardPresence getShardPresence( LinkedHashMap<String,ShardVocabulary> vocabulariesByShard, List<String> searchFields )
+      throws IOException {
+    ArrayList<HashMap<String,Path>> shardRuns = new ArrayList<HashMap<String,Path>>( vocabulariesByShard.size( ) );
+    String[] shards = vocabulariesByShard.keySet( ).toArray( new String[ vocabulariesByShard.size( ) ] );
+    ShardVocabularyFetcher.ShardVersion[] versions = new ShardVocabularyFetcher.ShardVersion[ shards.length ];
+    for (int i = 0; i < shards.length; i++) {
+      ShardVocabulary vocabulary = vocabulariesByShard.get( shards[i] );
+      shardRuns.add( vocabulary.fieldRuns );
+      versions[i] = vocabulary.version;
+    }
+    return ShardPresence.build( shards, versions, shardRuns, searchFields );
+  }
+    
+  // Returns the vocabulary of every segment of the searcher. Segments never change, so the vocabularies of segments
+  // that were already read for a previous searcher are reused - after a soft commit only the new segments are read.
+  // Vocabularies of segments that are gone (merged away) are dropped.
+  private List<SegmentVocabulary> getSegmentVocabularies( SolrIndexSearcher searcher, ArrayList<String> searchFields ) throws IOException {
+    List<LeafReaderContext> leaves = searcher.getIndexReader( ).leaves( );
+    ArrayList<SegmentVocabulary> vocabularies = new ArrayList<SegmentVocabulary>( leaves.size( ) );
+    HashMap<Object,SegmentVocabulary> liveVocabularies = new HashMap<Object,SegmentVocabulary>( );
+    ArrayList<Callable<SegmentVocabulary>> readTasks = new ArrayList<Callable<SegmentVocabulary>>( );
+    int nRead = 0;
+    for (LeafReaderContext leaf : leaves ) {
+      final LeafReader reader = leaf.reader( );
+      Object coreKey = reader.getCoreCacheKey( );
+      SegmentVocabulary cached = segmentVocabularies.get( coreKey );
+      if (cached == null) {
+        cached = new SegmentVocabulary( );
+        ++nRead;
+      }
+      final SegmentVocabulary vocabulary = cached;
+      final ArrayList<String> missingFields = new ArrayList<String>( );
+      for (String searchField : searchFields ) {
+        // a reused segment may lack a field if the field list changed
+        if (!vocabulary.fieldValues.containsKey( searchField )) {
+          missingFields.add( searchField );
+        }
+      }
+      if (missingFields.size( ) > 0) {
+        readTasks.add( new Callable<SegmentVocabulary>( ) {
+          @Override
+          public SegmentVocabulary call( ) throws IOException {
+            for (String searchField : missingFields ) {
+              vocabulary.fieldValues.put( searchField, getFieldValues( reader, searchField ) );
+            }
+            return vocabulary;
+          }
+        } );
+      }
+      liveVocabularies.put( coreKey, vocabulary );
+      vocabularies.add( vocabulary );
+    }
+    invokeAll( readTasks );
+      
+    segmentVocabularies = liveVocabularies;
+    Log.debug( "read " + nRead + " of " + leaves.size( ) + " segment vocabularies" );
+    return vocabularies;
+  }
+    
+  // Only the unique values are needed: read them from the terms dictionary, or from the doc values if the field is
+  // not indexed. Uninverting the field (FieldCache) would build doc -> ord structures sized to maxDoc for nothing.
+  private String[] getFieldValues( LeafReader reader, String fieldName ) throws IOException {
+    TermsEnum te = getTermsEnum( reader, fieldName );
+    if (te == null) return EMPTY_VALUES;
+      
+    ArrayList<String> values = new ArrayList<String>( );
+    BytesRef term;
+    while ((term = te.next()) != null) {
+      values.add( term.utf8ToString( ) );
+    }
+    String[] valueArray = values.toArray( new String[ values.size( ) ] );
+    // terms come in UTF-8 order, the merge compares Strings
+    Arrays.sort( valueArray );
+    return valueArray;
+  }
+    
+  // terms of the field, or the values of its doc values if it is not indexed - null if it has neither
+  static TermsEnum getTermsEnum( LeafReader reader, String fieldName ) throws IOException {
+    Terms terms = reader.terms( fieldName );
+    if (terms != null) {
+      return terms.iterator( null );
+    }
+      
+    FieldInfo fieldInfo = reader.getFieldInfos( ).fieldInfo( fieldName );
+    if (fieldInfo == null) return null;
+      
+    switch (fieldInfo.getDocValuesType( )) {
+      case SORTED:
+        return reader.getSortedDocValues( fieldName ).termsEnum( );
+      case SORTED_SET:
+        return reader.getSortedSetDocValues( fieldName ).termsEnum( );
+      default:
+        Log.debug( "no terms for " + fieldName );
+        return null;
+    }
+  }
+    
+  // merges the sorted values of the field from all segments, adding each distinct value once
+  private void addFieldEntries( FieldMapBuilder.FieldWriter writer, String fieldName, List<Vocabulary> vocabularies ) throws IOException {
+    CharsRef fieldChars = new CharsRef( fieldName );
+    try (ValueMerger values = new ValueMerger( fieldName, vocabularies )) {
+      String fieldValue;
+      while ((fieldValue = values.next( )) != null) {
+        addTerm( writer, fieldChars, fieldValue );
+      }
+    }
+  }
+    
+  // Fingerprint of the distinct values of each field in all segments (64 bit FNV-1a over the values in order).
+  // The entries of a field depend on nothing else, so if no fingerprint changed the map would be the same.
+  // Merges and hashes the whole vocabulary on every build: a fingerprint of the distinct values can't be combined
+  // from per-segment fingerprints, as a value that is in several segments counts once.
+  private long[] getFieldFingerprints( List<String> searchFields, final List<Vocabulary> vocabularies ) throws IOException {
+    ArrayList<Callable<Long>> fingerprintTasks = new ArrayList<Callable<Long>>( );
+    for (final String searchField : searchFields ) {
+      fingerprintTasks.add( new Callable<Long>( ) {
+        @Override
+        public Long call( ) throws IOException {
+          long fingerprint = FNV_OFFSET;
+          try (ValueMerger values = new ValueMerger( searchField, vocabularies )) {
+            String fieldValue;
+            while ((fieldValue = values.next( )) != null) {
+              for (int i = 0; i < fieldValue.length( ); i++) {
+                fingerprint = (fingerprint ^ fieldValue.charAt( i )) * FNV_PRIME;
+              }
+              // end of value - so that "ab","c" and "a","bc" differ
+              fingerprint = (fingerprint ^ 0xFFFF) * FNV_PRIME;
+            }
+          }
+          return fingerprint;
+        }
+      } );
+    }
+      
+    long[] fingerprints = new long[ searchFields.size( ) ];
+    List<Long> results = invokeAll( fingerprintTasks );
+    for (int i = 0; i < fingerprints.length; i++) {
+      fingerprints[i] = results.get( i );
+    }
+    return fingerprints;
+  }
+    
+  // Key of the map in the node's FieldMapRegistry: collection, configuration and vocabulary version (the fingerprints
+  // of the field values). Null if the map is not shared.
+  private String getVocabularyKey( List<String> searchFields, long[] fieldFingerprints ) {
+    if (fieldMapRegistry == null || fieldFingerprints == null) return null;
+      
+    StringBuilder key = new StringBuilder( );
+    key.append( core.getCoreDescriptor( ).getCollectionName( ) ).append( '/' ).append( configFingerprint );
+    for (int i = 0; i < fieldFingerprints.length; i++) {
+      key.append( '/' ).append( searchFields.get( i ) ).append( ':' ).append( Long.toHexString( fieldFingerprints[i] ) );
+    }
+    return key.toString( );
+  }
+    
+  // Runs the tasks on the build pool and returns their results in task order. Without a pool (buildThreads = 1)
+  // they run one after another on the calling thread.
+  private <T> List<T> invokeAll( List<Callable<T>> tasks ) throws IOException {
+    ArrayList<T> results = new ArrayList<T>( tasks.size( ) );
+    if (buildPool == null || tasks.size( ) < 2) {
+      for (Callable<T> task : tasks ) {
+        try {
+          results.add( task.call( ) );
+        }
+        catch ( IOException ioe ) {
+          throw ioe;
+        }
+        catch ( Exception e ) {
+          throw new IOException( e );
+        }
+      }
+      return results;
+    }
+      
+    ArrayList<Future<T>> futures = new ArrayList<Future<T>>( tasks.size( ) );
+    try {
+      for (Callable<T> task : tasks ) {
+        futures.add( buildPool.submit( task ) );
+      }
+      for (Future<T> future : futures ) {
+        results.add( future.get( ) );
+      }
+    }
+    catch ( InterruptedException ie ) {
+      Thread.currentThread( ).interrupt( );
+      throw new IOException( ie );
+    }
+    catch ( ExecutionException ee ) {
+      if (ee.getCause( ) instanceof IOException) throw (IOException)ee.getCause( );
+      throw new IOException( ee.getCause( ) );
+    }
+    catch ( RejectedExecutionException ree ) {
+      throw new IOException( "build pool is shut down", ree );
+    }
+    finally {
+      for (Future<T> future : futures ) {
+        future.cancel( false );
+      }
+    }
+    return results;
+  }
+    
+  // Identifies the segments of the searcher. The values of the String fields only depend on the segments (deletes
+  // don't change the terms), so maps built from the same segments can be reused.
+  private String getSegmentsKey( SolrIndexSearcher searcher ) {
+    StringBuilder key = new StringBuilder( );
+    for (LeafReaderContext leaf : searcher.getIndexReader( ).leaves( ) ) {
+      LeafReader reader = FilterLeafReader.unwrap( leaf.reader( ) );
+      if (!(reader instanceof SegmentReader)) return null;
+        
+      SegmentReader segmentReader = (SegmentReader)reader;
+      byte[] id = segmentReader.getSegmentInfo( ).info.getId( );
+      if (key.length( ) > 0) key.append( ',' );
+      key.append( segmentReader.getSegmentName( ) );
+      if (id != null) key.append( ':' ).append( StringHelper.idToString( id ) );
+    }
+    return key.toString( );
+  }
+    
+  // everything besides the index that goes into the maps
+  private String getConfigFingerprint( ) {
+    CRC32 crc = new CRC32( );
+    if (synonymsFile != null) {
+      try (InputStream in = core.getResourceLoader( ).openResource( synonymsFile )) {
+        byte[] buffer = new byte[ 8192 ];
+        int len;
+        while ((len = in.read( buffer )) > 0) {
+          crc.update( buffer, 0, len );
+        }
+      }
+      catch ( IOException ioe ) {
+        Log.warn( "Reading " + synonymsFile + " got Exception " + ioe );
+      }
+    }
+      
+    StringBuilder fingerprint = new StringBuilder( );
+    fingerprint.append( "synonyms=" ).append( synonymsFile ).append( ':' ).append( Long.toHexString( crc.getValue( ) ) );
+    if (excludeFields != null) {
+      ArrayList<String> sorted = new ArrayList<String>( excludeFields );
+      Collections.sort( sorted );
+      fingerprint.append( ";excludeFields=" ).append( sorted );
+    }
+    return fingerprint.toString( );
+  }
+    
+  private Path getSnapshotPath( ) {
+    return Paths.get( core.getDataDir( ), SNAPSHOT_DIR );
+  }
+    
+  // Saves the current snapshot, replacing the previously saved one. Must be called holding buildLock.
+  private void persistFieldMap( ) {
+    FieldMapSnapshot snapshot = fieldMapSnapshot.get( );
+    if (!persistFieldMap || snapshotPrefix == null || snapshot == null || snapshot == persistedSnapshot
+        || snapshot.segmentsKey == null || !snapshot.complete) {
+      return;
+    }
+      
+    long start = System.currentTimeMillis( );
+    String fileName = snapshotPrefix + snapshot.generation;
+    String tmpFileName = fileName + ".tmp";
+    try {
+      Files.createDirectories( getSnapshotPath( ) );
+      try (Directory dir = new MMapDirectory( getSnapshotPath( ) )) {
+        try (IndexOutput out = dir.createOutput( tmpFileName, IOContext.DEFAULT )) {
+          writeSnapshot( out, snapshot );
+        }
+        dir.sync( Collections.singleton( tmpFileName ) );
+        dir.renameFile( tmpFileName, fileName );
+          
+        for (String file : dir.listAll( ) ) {
+          String snapshotFile = file.endsWith( ".tmp" ) ? file.substring( 0, file.length( ) - 4 ) : file;
+          if (getSnapshotGeneration( snapshotFile ) >= 0 && !file.equals( fileName )) {
+            dir.deleteFile( file );
+          }
+        }
+      }
+      persistedSnapshot = snapshot;
+      Log.info( "saved field map " + fileName + " in " + (System.currentTimeMillis( ) - start) + " ms" );
+    }
+    catch ( IOException ioe ) {
+      Log.warn( "Saving field map got Exception " + ioe );
+    }
+  }
+    
+  // The generation of a saved snapshot of this component (the prefix followed by digits only), -1 for other files -
+  // e.g. those of a component whose name starts with this component's name and '_'.
+  private long getSnapshotGeneration( String file ) {
+    int start = snapshotPrefix.length( );
+    if (!file.startsWith( snapshotPrefix ) || file.length( ) == start || file.length( ) - start > 18) return -1;
+      
+    for (int i = start; i < file.length( ); i++) {
+      char c = file.charAt( i );
+      if (c < '0' || c > '9') return -1;
+    }
+    return Long.parseLong( file.substring( start ) );
+  }
+    
+  // The format of the saved snapshots and of the snapshots pulled from the builder
+  private void writeSnapshot( IndexOutput out, FieldMapSnapshot snapshot ) throws IOException {
+    CodecUtil.writeHeader( out, SNAPSHOT_CODEC, SNAPSHOT_VERSION );
+    out.writeString( configFingerprint );
+    out.writeString( snapshot.segmentsKey != null ? snapshot.segmentsKey : "" );
+    out.writeVInt( snapshot.searchFields.size( ) );
+    for (String searchField : snapshot.searchFields ) {
+      out.writeString( searchField );
+    }
+    out.writeString( snapshot.shards != null ? snapshot.shards : "" );
+    out.writeByte( (byte)(snapshot.fieldFingerprints != null ? 1 : 0) );
+    if (snapshot.fieldFingerprints != null) {
+      for (long fingerprint : snapshot.fieldFingerprints ) {
+        out.writeLong( fingerprint );
+      }
+    }
+    snapshot.fieldMap.save( out );
+    CodecUtil.writeFooter( out );
+  }
+    
+  // Loads the saved snapshot if it was built from the segments of the searcher with the current configuration.
+  // Returns true if the loaded maps are complete, false if they still have to be (re)built.
+  private boolean loadFieldMap( SolrIndexSearcher searcher ) {
+    Path path = getSnapshotPath( );
+    String segmentsKey = getSegmentsKey( searcher );
+    if (snapshotPrefix == null || segmentsKey == null || !Files.isDirectory( path )) return false;
+      
+    long start = System.currentTimeMillis( );
+    try (Directory dir = new MMapDirectory( path )) {
+      String fileName = null;
+      long generation = -1;
+      for (String file : dir.listAll( ) ) {
+        long fileGeneration = getSnapshotGeneration( file );
+        if (fileGeneration > generation) {
+          generation = fileGeneration;
+          fileName = file;
+        }
+      }
+      if (fileName == null) return false;
+        
+      FieldMapSnapshot snapshot = null;
+      try (ChecksumIndexInput in = dir.openChecksumInput( fileName, IOContext.READONCE )) {
+        CodecUtil.checkHeader( in, SNAPSHOT_CODEC, SNAPSHOT_VERSION, SNAPSHOT_VERSION );
+        if (!in.readString( ).equals( configFingerprint ) || !in.readString( ).equals( segmentsKey )) {
+          Log.info( "saved field map " + fileName + " is out of date" );
+          return false;
+        }
+          
+        snapshot = readSnapshot( in, getStringFields( searcher ), searcher.getIndexReader( ).getVersion( ), generation,
+                                 segmentsKey );
+        if (snapshot == null) {
+          Log.info( "saved field map " + fileName + " has different fields" );
+          return false;
         }
       }
         
-      StringBuilder orQ = new StringBuilder( );
-      for (String val : valList ) {
-        if (orQ.length() > 0) orQ.append( (useAnd ? " AND " : " OR ") );
-        orQ.append( val );
+      synchronized( buildLock ) {
+        publish( snapshot );
+        persistedSnapshot = snapshot;
       }
-      return fieldName + ":(" + orQ.toString() + ")" + suffix;
+      Log.info( "loaded field map " + fileName + " in " + (System.currentTimeMillis( ) - start) + " ms" );
+        
+      // terms of the other shards may have changed while this core was down - use the saved ones until rebuilt
+      if (snapshot.shards != null) {
+        distribShards.set( snapshot.shards );
+        return false;
+      }
+      return !core.getCoreDescriptor( ).getCoreContainer( ).isZooKeeperAware( );
+    }
+    catch ( Exception e ) {
+      Log.warn( "Loading field map got Exception " + e );
+      return false;
     }
   }
     
-  private String getFilterQuery( ResponseBuilder rb, String[] fieldNames, ArrayList<String> valList,
-                                 int[] termPosRange, ArrayList<char[]> queryTokens, String suffix) {
-    StringBuilder filterQBuilder = new StringBuilder( );
-    for (int i = 0; i < fieldNames.length; i++) {
-      if (i > 0) filterQBuilder.append( " OR " );
-      filterQBuilder.append( getFilterQuery( rb, fieldNames[i], valList, termPosRange, queryTokens, suffix ) );
+  // Reads the rest of a snapshot, after the configuration and segments, and registers its map. Returns null if it was
+  // built from other fields than expectedFields (null: any fields).
+  private FieldMapSnapshot readSnapshot( ChecksumIndexInput in, List<String> expectedFields, long indexVersion,
+                                         long generation, String segmentsKey ) throws IOException {
+    ArrayList<String> searchFields = new ArrayList<String>( );
+    int nFields = in.readVInt( );
+    for (int i = 0; i < nFields; i++) {
+      searchFields.add( in.readString( ) );
     }
-    return "(" + filterQBuilder.toString() + ")";
+    if (expectedFields != null && !searchFields.equals( expectedFields )) return null;
+      
+    String shards = in.readString( );
+    long[] fieldFingerprints = null;
+    if (in.readByte( ) == 1) {
+      fieldFingerprints = new long[ nFields ];
+      for (int i = 0; i < nFields; i++) {
+        fieldFingerprints[i] = in.readLong( );
+      }
+    }
+    FieldValueMap fieldMap = FieldValueMap.load( in );
+    CodecUtil.checkFooter( in );
+    String vocabularyKey = getVocabularyKey( searchFields, fieldFingerprints );
+    if (vocabularyKey != null) {
+      fieldMap = fieldMapRegistry.register( vocabularyKey, fieldMap );
+    }
+    return new FieldMapSnapshot( fieldMap, fieldMap.getOutputs( fieldDelim ), searchFields,
+                                 shards.length( ) > 0 ? shards : null, indexVersion, generation, segmentsKey,
+                                 fieldFingerprints, vocabularyKey, true, null );
   }
     
-  private String getFieldNameFor( ArrayList<char[]> queryTokens, int startToken, int endToken ) throws IOException {
-    String phrase = getPhrase( queryTokens, startToken, endToken );
-    String fieldName = getFieldNameFor( phrase.toLowerCase( ) );
-    if (fieldName != null) return fieldName;
+  // Runs on the builder thread every snapshotPollInterval ms: pulls the builder's snapshot if it has changed. Builds
+  // here if this core is the builder or the builder was configured differently.
+  private void pollSnapshot( ) {
+    if (closed) return;
       
-    String stemmed = getStemmed( phrase );
-    Log.debug( "checking stemmed " + stemmed );
-    return (stemmed.equals( phrase )) ? null : getFieldNameFor( stemmed );
+    String source = null;
+    boolean pulling;
+    try {
+      source = getSnapshotSource( );
+      pulling = (source != null) && pullSnapshot( source );
+    }
+    catch ( Exception e ) {
+      // keep the current maps - the next poll tries again
+      Log.warn( "Pulling field map from " + source + " got Exception " + e );
+      return;
+    }
+      
+    if (pullingSnapshots && !pulling) {
+      pullingSnapshots = false;
+      pulledSnapshotId = null;
+      Log.info( "building field map on this core" );
+      buildRegisteredSearcher( );
+    }
   }
     
-  private String getSingleTermQuery( String multiTermValue ) {
-        
-    String multiTerm = multiTermValue;
-    if (multiTermValue.startsWith( "\"" )) {
-      multiTerm = new String( multiTermValue.substring( 1, multiTermValue.lastIndexOf( "\"" )));
-    }
-    Log.debug( "getSingleTermQuery " + multiTerm + "" );
-        
-    try {
-      StringBuilder strb = new StringBuilder( );
-            
-      String[] terms = multiTerm.split( " " );
-      for (int i = 0; i < terms.length; i++) {
-        if (i > 0) strb.append( " AND " );
-                
-        String fieldName = getFieldNameFor( terms[i].toLowerCase( ) );
-        Log.debug( "fieldName for " + terms[i].toLowerCase( ) + " is " + fieldName );
-        if (fieldName == null) return null;
-                
-        if (fieldName.indexOf( fieldDelim ) > 0) {
-          String[] fields = fieldName.split( fieldSplitExpr );
-          strb.append( "(" );
-          for (int f = 0; f < fields.length; f++) {
-            if (f > 0) strb.append( " OR " );
-            strb.append( fields[f] ).append( ":" ).append( getMappedFieldName( termMap, terms[i].toLowerCase( ) ) );
-          }
-          strb.append( ")" );
-        }
-        else {
-          strb.append( fieldName ).append( ":" ).append( getMappedFieldName( termMap, terms[i].toLowerCase( ) ) );
+  // Core URL of the builder, null if this core is the builder
+  private String getSnapshotSource( ) throws IOException {
+    if (snapshotSource != null) return snapshotSource;
+      
+    CoreContainer container = core.getCoreDescriptor( ).getCoreContainer( );
+    CloudDescriptor cloud = core.getCoreDescriptor( ).getCloudDescriptor( );
+    if (snapshotHandler == null || !container.isZooKeeperAware( ) || cloud == null) return null;
+      
+    // the leader of the first shard by name - every core of the collection picks the same one
+    DocCollection collection = container.getZkController( ).getClusterState( ).getCollectionOrNull( cloud.getCollectionName( ) );
+    Slice first = null;
+    if (collection != null) {
+      for (Slice slice : collection.getSlices( ) ) {
+        if (first == null || slice.getName( ).compareTo( first.getName( ) ) < 0) {
+          first = slice;
         }
       }
-            
-      Log.debug( "getSingleTermQuery returns: '" + strb.toString( ) + "'" );
-      return strb.toString( );
     }
-    catch (IOException ioe ) {
-      return null;
+    Replica leader = (first != null) ? first.getLeader( ) : null;
+    if (leader == null) {
+      throw new IOException( "no leader for the first shard of " + cloud.getCollectionName( ) );
     }
+    if (leader.getName( ).equals( cloud.getCoreNodeName( ) )) return null;
+      
+    String url = new ZkCoreNodeProps( leader ).getCoreUrl( );
+    return url.endsWith( "/" ) ? url.substring( 0, url.length( ) - 1 ) : url;
   }
     
-  private String getFieldNameFor( String phrase )  throws IOException {
-    Log.debug( "getFieldNameFor '" + phrase + "'" );
-    return ("*".equals( phrase) || "* *".equals( phrase )) ? null : getMappedFieldName( fieldMap, phrase.toLowerCase( ) );
-  }
-
-    
-  // TODO: Return comma separated string if more than one
-  private String getMappedFieldName( SynonymMap termMap, String phrase ) throws IOException {
-    Log.debug( "getMappedFieldName: '" + phrase + "'" );
-    FST<BytesRef> fst = termMap.fst;
-    FST.BytesReader fstReader = fst.getBytesReader();
-    FST.Arc<BytesRef> scratchArc = new FST.Arc<>( );
-    BytesRef scratchBytes = new BytesRef();
-    CharsRefBuilder scratchChars = new CharsRefBuilder();
-    ByteArrayDataInput bytesReader = new ByteArrayDataInput();
-        
-    BytesRef pendingOutput = fst.outputs.getNoOutput();
-    fst.getFirstArc( scratchArc );
-    BytesRef matchOutput = null;
+  // Asks the source for its snapshot - it only sends it if it has changed since the last pull. Returns false if the
+  // source is this core or was configured differently.
+  private boolean pullSnapshot( String source ) throws SolrServerException, IOException {
+    if (snapshotClient == null) {
+      ModifiableSolrParams clientParams = new ModifiableSolrParams( );
+      clientParams.set( HttpClientUtil.PROP_SO_TIMEOUT, shardTimeout );
+      clientParams.set( HttpClientUtil.PROP_CONNECTION_TIMEOUT, shardTimeout );
+      snapshotClient = HttpClientUtil.createClient( clientParams );
+    }
       
-    String noSpPhrase = phrase.replace( ' ', '_' );
-    int charPos = 0;
-    while(charPos < noSpPhrase.length()) {
-      final int codePoint = noSpPhrase.codePointAt( charPos );
-      if (fst.findTargetArc( codePoint, scratchArc, scratchArc, fstReader) == null) {
-        Log.debug( "No FieldName for " + phrase );
-        return null;
-      }
-                
-      pendingOutput = fst.outputs.add(pendingOutput, scratchArc.output);
-      charPos += Character.charCount(codePoint);
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    params.set( CommonParams.QT, (snapshotHandler != null) ? snapshotHandler : DEFAULT_SNAPSHOT_HANDLER );
+    params.set( AutoFilterSnapshotHandler.CONFIG, configFingerprint );
+    if (pulledSnapshotId != null) {
+      params.set( AutoFilterSnapshotHandler.VERSION, pulledSnapshotId );
     }
-
-    if (scratchArc.isFinal()) {
-      Log.debug( "creating matchOutput" );
-      matchOutput = fst.outputs.add(pendingOutput, scratchArc.nextFinalOutput);
-      ArrayList<String> mappedFields = new ArrayList<String>( );
-      bytesReader.reset( matchOutput.bytes, matchOutput.offset, matchOutput.length );
-            
-      final int code = bytesReader.readVInt();
-      final int count = code >>> 1;
-      for( int outputIDX = 0; outputIDX < count; outputIDX++ ) {
-        termMap.words.get( bytesReader.readVInt(), scratchBytes );
-        scratchChars.copyUTF8Bytes(scratchBytes);
-        int lastStart = 0;
-        final int chEnd = lastStart + scratchChars.length();
-        for( int chIDX = lastStart; chIDX <= chEnd; chIDX++ ) {
-          if (chIDX == chEnd || scratchChars.charAt(chIDX) == SynonymMap.WORD_SEPARATOR) {
-            int outputLen = chIDX - lastStart;
-            assert outputLen > 0: "output contains empty string: " + scratchChars;
-            mappedFields.add( new String( scratchChars.chars(), lastStart, outputLen ) );
-            lastStart = chIDX + 1;
-          }
-        }
-      }
-
-      if (mappedFields.size() == 1) {
-        Log.debug( "returning mapped fieldName " + mappedFields.get( 0 ) );
-        return mappedFields.get( 0 );
-      }
-      else {
-        StringBuilder fieldBuilder = new StringBuilder( );
-        for (String fieldName : mappedFields ) {
-          if (fieldBuilder.length() > 0) fieldBuilder.append( fieldDelim );
-          fieldBuilder.append( fieldName );
-        }
-        Log.debug( "returning mapped fieldName " + fieldBuilder.toString( ) );
-        return fieldBuilder.toString( );
+    NamedList<Object> response;
+    try (HttpSolrClient client = new HttpSolrClient( source, snapshotClient )) {
+      response = client.request( new QueryRequest( params ) );
+    }
+      
+    if (builderId.equals( response.get( AutoFilterSnapshotHandler.BUILDER ) )) return false;
+    if (!configFingerprint.equals( response.get( AutoFilterSnapshotHandler.CONFIG ) )) {
+      if (pullingSnapshots) {
+        Log.warn( "field map of " + source + " was built with a different configuration" );
       }
+      return false;
     }
       
-    Log.warn( "matchOutput but no FieldName for " + phrase );
-    return null;
+    pullingSnapshots = true;
+    byte[] bytes = (byte[])response.get( AutoFilterSnapshotHandler.SNAPSHOT );
+    if (bytes != null) {
+      loadPulledSnapshot( source, (String)response.get( AutoFilterSnapshotHandler.VERSION ), bytes );
+    }
+    return true;
   }
-
     
-  private void buildFieldMap( ResponseBuilder rb ) throws IOException {
-    Log.debug( "buildFieldMap" );
-    SolrIndexSearcher searcher = rb.req.getSearcher();
-    // build a synonym map from the SortedDocValues -
-    // for each field value: lower case, stemmed, lookup synonyms from synonyms.txt - map to fieldValue
-    SynonymMap.Builder fieldBuilder = new SynonymMap.Builder( true );
-    SynonymMap.Builder termBuilder = new SynonymMap.Builder( true );
+  // Saves the pulled snapshot in the data dir and loads it from there like a saved one. The index version of the
+  // pulled snapshot is that of this core's newest searcher.
+  private void loadPulledSnapshot( String source, String id, byte[] bytes ) throws IOException {
+    long start = System.currentTimeMillis( );
+    Path path = getSnapshotPath( );
+    Files.createDirectories( path );
+    String fileName = PULLED_PREFIX + snapshotPrefix;
+    Path tmpFile = path.resolve( fileName + ".tmp" );
+    Files.write( tmpFile, bytes );
+    Files.move( tmpFile, path.resolve( fileName ), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
       
-    HashMap<String,UninvertingReader.Type> fieldTypeMap = new HashMap<String,UninvertingReader.Type>( );
+    long indexVersion = 0;
+    long generation = 0;
+    RefCounted<SolrIndexSearcher> searcher = core.getNewestSearcher( false );
+    if (searcher != null) {
+      try {
+        indexVersion = searcher.get( ).getIndexReader( ).getVersion( );
+        generation = searcher.get( ).getIndexReader( ).getIndexCommit( ).getGeneration( );
+      }
+      finally {
+        searcher.decref( );
+      }
+    }
       
-    ArrayList<String> searchFields = getStringFields( searcher );
-    for (String searchField : searchFields ) {
-      fieldTypeMap.put( searchField, UninvertingReader.Type.SORTED_SET_BINARY);
+    FieldMapSnapshot snapshot;
+    try (Directory dir = new MMapDirectory( path );
+         ChecksumIndexInput in = dir.openChecksumInput( fileName, IOContext.READONCE )) {
+      CodecUtil.checkHeader( in, SNAPSHOT_CODEC, SNAPSHOT_VERSION, SNAPSHOT_VERSION );
+      in.readString( );   // configuration - the same as this core's, the source checked it
+      in.readString( );   // segments of the source
+      // no segments key: the snapshot doesn't describe this core's index and is never saved as its own
+      snapshot = readSnapshot( in, null, indexVersion, generation, null );
+    }
+    synchronized( buildLock ) {
+      publish( snapshot );
     }
-    UninvertingReader unvRead = new UninvertingReader( searcher.getLeafReader( ), fieldTypeMap );
-  
-    for (String searchField : searchFields ) {
-      Log.debug( "adding searchField " + searchField );
-      CharsRef fieldChars = new CharsRef( searchField );
-      SortedSetDocValues sdv = unvRead.getSortedSetDocValues( searchField );
-      if (sdv == null) continue;
-      Log.debug( "got SortedSetDocValues for " + searchField );
-      TermsEnum te = sdv.termsEnum();
-      while (te.next() != null) {
-        BytesRef term = te.term();
-        String fieldValue = term.utf8ToString( );
-        addTerm ( fieldChars, fieldValue, fieldBuilder, termBuilder );
+    pulledSnapshotId = id;
+    Log.info( "pulled field map " + id + " from " + source + " in " + (System.currentTimeMillis( ) - start) + " ms" );
+  }
+    
+  // hands the registered searcher to the builder - for a core that stops pulling
+  private void buildRegisteredSearcher( ) {
+    RefCounted<SolrIndexSearcher> searcher = core.getRegisteredSearcher( );
+    if (searcher == null) return;
+    try {
+      searcher.get( ).getIndexReader( ).incRef( );
+      triggerBuild( searcher.get( ) );
+    }
+    finally {
+      searcher.decref( );
+    }
+  }
+    
+  // Runs every shardCheckInterval ms if pruneShards is set: reads the index version of the shards of the current map
+  // (in parallel, on the fetcher's threads) and marks the shards whose version moved since the build, or that don't
+  // answer, stale in the map's ShardPresence. A moved version also starts a rebuild, which fetches the new values.
+  void checkShardVersions( ) {
+    synchronized( shardCheckLock ) {
+      FieldMapSnapshot snapshot = fieldMapSnapshot.get( );
+      ShardVocabularyFetcher fetcher = shardFetcher;
+      if (closed || snapshot == null || snapshot.shardPresence == null || fetcher == null) return;
+        
+      ShardPresence presence = snapshot.shardPresence;
+      ShardVocabularyFetcher.ShardVersion[] current = fetcher.getVersions( presence.versions );
+      boolean[] stale = new boolean[ current.length ];
+      boolean moved = false;
+      for (int i = 0; i < current.length; i++) {
+        stale[i] = presence.versions[i] == null || !presence.versions[i].equals( current[i] );
+        moved |= current[i] != null && stale[i];
+      }
+      presence.setStale( stale );
+      ++shardVersionChecks;
+        
+      if (moved && fieldMapSnapshot.get( ) == snapshot) {
+        Log.info( "index version of shards moved since the field map was built - rebuilding" );
+        buildRegisteredSearcher( );
       }
     }
+  }
+    
+  // The current snapshot for the AutoFilterSnapshotHandler, serialized once for all the pulling cores. Null if this
+  // core has no complete snapshot or pulls its own.
+  ServedSnapshot getServedSnapshot( ) throws IOException {
+    FieldMapSnapshot snapshot = fieldMapSnapshot.get( );
+    if (pullingSnapshots || snapshot == null || !snapshot.complete) return null;
       
-    addDistributedTerms( rb, fieldBuilder, termBuilder, searchFields );
+    ServedSnapshot served = servedSnapshot;
+    if (served == null || served.snapshot != snapshot) {
+      RAMOutputStream out = new RAMOutputStream( new RAMFile( ), true );
+      writeSnapshot( out, snapshot );
+      byte[] bytes = new byte[ (int)out.getFilePointer( ) ];
+      out.writeTo( bytes, 0 );
+      served = new ServedSnapshot( snapshot, getSnapshotId( snapshot ), bytes );
+      servedSnapshot = served;
+    }
+    return served;
+  }
+    
+  // Identifies the maps of a snapshot: the fingerprints of the field values, or the index version if they are unknown
+  private String getSnapshotId( FieldMapSnapshot snapshot ) {
+    if (snapshot.fieldFingerprints == null) return "version:" + snapshot.indexVersion;
       
-    fieldMap = fieldBuilder.build( );
-    termMap = termBuilder.build( );
+    StringBuilder id = new StringBuilder( "fields" );
+    for (int i = 0; i < snapshot.fieldFingerprints.length; i++) {
+      id.append( '/' ).append( snapshot.searchFields.get( i ) ).append( ':' ).append( Long.toHexString( snapshot.fieldFingerprints[i] ) );
+    }
+    return id.toString( );
+  }
+    
+  String getBuilderId( ) {
+    return builderId;
+  }
+    
+  String getSnapshotConfiguration( ) {
+    return configFingerprint;
+  }
+    
+  // for tests: true while the field maps come from another core
+  boolean isPullingSnapshots( ) {
+    return pullingSnapshots;
   }
     
   // TODO: Filter this by the configuration fields ...
@@ -747,7 +2337,7 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     return strFields;
   }
     
-  private void addTerm( CharsRef fieldChars, String fieldValue, SynonymMap.Builder fieldBuilder, SynonymMap.Builder termBuilder ) throws IOException {
+  private void addTerm( FieldMapBuilder.FieldWriter writer, CharsRef fieldChars, String fieldValue ) throws IOException {
     
     Log.debug( "got fieldValue: '" + fieldValue + "'" );
     String nospVal = fieldValue.replace( ' ', '_' );
@@ -755,22 +2345,19 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     CharsRef nospChars = new CharsRef( nospVal );
     CharsRef valueChars = new CharsRef( fieldValue );
         
-    fieldBuilder.add( nospChars, fieldChars, false );
-    termBuilder.add( nospChars, valueChars, false );
+    writer.add( nospChars, fieldChars, valueChars );
         
     // lower case term,
     String lowercase = nospVal.toLowerCase( );
     CharsRef lcChars = new CharsRef( lowercase );
-    fieldBuilder.add( lcChars, fieldChars, false );
-    termBuilder.add( lcChars, valueChars, false );
+    writer.add( lcChars, fieldChars, valueChars );
         
     // stem it
     String stemmed = getStemmed( nospVal );
     if (stemmed.equals( fieldValue ) == false) {
       Log.debug( "adding stemmed: " + stemmed );
       CharsRef stChars = new CharsRef( stemmed );
-      fieldBuilder.add( stChars, fieldChars, false );
-      termBuilder.add( stChars, valueChars, false );
+      writer.add( stChars, fieldChars, valueChars );
     }
         
     if (this.synonyms != null) {
@@ -781,8 +2368,7 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
           String nospSyn = synonym.replace( ' ', '_' );
           Log.debug( "adding: " + synonym + " -> " + fieldValue );
           CharsRef synChars = new CharsRef( nospSyn );
-          fieldBuilder.add( synChars, fieldChars, false );
-          termBuilder.add( synChars, valueChars, false );
+          writer.add( synChars, fieldChars, valueChars );
         }
       }
       synonymLst = getSynonymsFor( this.synonyms, fieldValue.toLowerCase() );
@@ -791,92 +2377,107 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
           String nospSyn = synonym.replace( ' ', '_' );
           Log.debug( "adding: " + synonym + " -> " + fieldValue );
           CharsRef synChars = new CharsRef( nospSyn );
-          fieldBuilder.add( synChars, fieldChars, false );
-          termBuilder.add( synChars, valueChars, false );
+          writer.add( synChars, fieldChars, valueChars );
         }
       }
     }
   }
     
-  private void addDistributedTerms( ResponseBuilder rb, SynonymMap.Builder fieldBuilder, SynonymMap.Builder termBuilder, ArrayList<String> searchFields ) throws IOException {
-    SolrIndexSearcher searcher = rb.req.getSearcher();
-    CoreContainer container = searcher.getCore().getCoreDescriptor().getCoreContainer();
+  // Vocabularies of the shards of a distributed index by shard, in shard order, for the shards that answered - merged
+  // with the local segment vocabularies. Shards that did not answer are added to failedShards. Empty if the index is
+  // not distributed.
+  private LinkedHashMap<String,ShardVocabulary> getShardVocabularies( final SolrIndexSearcher searcher, String shards,
+                                                                      ArrayList<String> searchFields, List<String> failedShards ) throws IOException {
+    CoreContainer container = core.getCoreDescriptor().getCoreContainer();
+    if (shards == null && !container.isZooKeeperAware( )) return new LinkedHashMap<String,ShardVocabulary>( );
+      
+    // builds run outside of a request - the ShardHandler needs one to find the shards
+    ModifiableSolrParams reqParams = new ModifiableSolrParams( );
+    if (shards != null) {
+      reqParams.set( ShardParams.SHARDS, shards );
+    }
+    SolrQueryRequest req = new LocalSolrQueryRequest( core, reqParams ) {
+      @Override
+      public SolrIndexSearcher getSearcher( ) {
+        return searcher;
+      }
+    };
       
+    try {
+      ResponseBuilder rb = new ResponseBuilder( req, new SolrQueryResponse( ), Collections.<SearchComponent>emptyList( ) );
+      return getShardVocabularies( rb, container, searchFields, failedShards );
+    }
+    finally {
+      req.close( );
+    }
+  }
+    
+  private LinkedHashMap<String,ShardVocabulary> getShardVocabularies( ResponseBuilder rb, CoreContainer container,
+                                                                      ArrayList<String> searchFields, List<String> failedShards ) throws IOException {
     ShardHandlerFactory shardHandlerFactory = container.getShardHandlerFactory( );
     ShardHandler shardHandler = shardHandlerFactory.getShardHandler();
     shardHandler.checkDistributed( rb );
       
     Log.debug( "Is Distributed = " + rb.isDistrib );
       
+    LinkedHashMap<String,ShardVocabulary> vocabularies = new LinkedHashMap<String,ShardVocabulary>( );
     if( rb.isDistrib ) {
-      // create a ShardRequest that contains a Terms Request.
-      // don't send to this shard???
-      ShardRequest sreq = new ShardRequest();
-      sreq.purpose = ShardRequest.PURPOSE_GET_TERMS;
-      sreq.actualShards = rb.shards;
-      ModifiableSolrParams params = new ModifiableSolrParams( );
-        
-      params.set( TermsParams.TERMS_LIMIT, -1);
-      params.set( TermsParams.TERMS_SORT, TermsParams.TERMS_SORT_INDEX);
-      String[] fields = searchFields.toArray( new String[ searchFields.size( )] );
-      params.set( TermsParams.TERMS_FIELD, fields );
-        
-      params.set( CommonParams.DISTRIB, "false" );
-      params.set( ShardParams.IS_SHARD, true );
-      params.set( ShardParams.SHARDS_PURPOSE, sreq.purpose );
-      params.set( CommonParams.QT, termsHandler );
-      params.set( TermsParams.TERMS, "true" );
-        
-      if (rb.requestInfo != null) {
-        params.set("NOW", Long.toString(rb.requestInfo.getNOW().getTime()));
+      // the ShardHandler has no request timeouts and no retries - a dead shard would hold up the build forever
+      if (shardFetcher == null) {
+        shardFetcher = new ShardVocabularyFetcher( shardTimeout, shardRetries, shardPageSize, termsHandler,
+                                                   vocabularyHandler, shardFetchThreads, buildRamBufferMB * 1024L * 1024L );
       }
-      sreq.params = params;
         
-      for (String shard : rb.shards ) {
-        Log.debug( "sending request to shard " + shard );
-        params.set(ShardParams.SHARD_URL, shard );
-        shardHandler.submit( sreq, shard, params );
+      HashMap<String,ShardVocabularyFetcher.ShardVersion> knownVersions = new HashMap<String,ShardVocabularyFetcher.ShardVersion>( );
+      for (Map.Entry<String,ShardVocabulary> entry : shardVocabularies.entrySet( ) ) {
+        // a vocabulary that lacks a search field (the field list changed) is fetched again
+        if (entry.getValue( ).fieldRuns.keySet( ).containsAll( searchFields )) {
+          knownVersions.put( entry.getKey( ), entry.getValue( ).version );
+        }
       }
         
-      ShardResponse rsp = shardHandler.takeCompletedIncludingErrors( );
-      if (rsp != null) {
-        Log.debug( "got " + rsp.getShardRequest().responses.size( ) + " responses" );
-        for ( ShardResponse srsp : rsp.getShardRequest().responses ) {
-          Log.debug( "Got terms response from " + srsp.getShard( ));
-        
-          if (srsp.getException() != null) {
-            Log.debug( "ShardResponse Exception!! " + srsp.getException( ) );
-          }
-        
-          @SuppressWarnings("unchecked")
-          NamedList<NamedList<Number>> terms = (NamedList<NamedList<Number>>) srsp.getSolrResponse().getResponse().get("terms");
-          if (terms != null) {
-            addTerms( terms, fieldBuilder, termBuilder, searchFields );
-          }
-          else {
-            Log.warn( "terms was NULL! - make sure that /terms request handler is defined in solrconfig.xml" );
+      HashMap<String,ShardVocabulary> liveVocabularies = new HashMap<String,ShardVocabulary>( );
+      int nFetched = 0;
+      for (ShardVocabularyFetcher.ShardTerms shardTerms : shardFetcher.fetch( Arrays.asList( rb.shards ), searchFields,
+                                                                               shardHandlerFactory, knownVersions ) ) {
+        ShardVocabulary cached = shardVocabularies.get( shardTerms.shard );
+        if (shardTerms.exception != null) {
+          Log.warn( "No terms from shard " + shardTerms.shard + ": " + shardTerms.exception );
+          failedShards.add( shardTerms.shard );
+          if (cached != null) {
+            // the shard may answer with the same version next time
+            liveVocabularies.put( shardTerms.shard, cached );
           }
+          continue;
+        }
+          
+        if (shardTerms.fieldRuns == null) {
+          // index version unchanged
+          vocabularies.put( shardTerms.shard, cached );
+          liveVocabularies.put( shardTerms.shard, cached );
+          continue;
+        }
+          
+        Log.debug( "Got terms response from " + shardTerms.url );
+        ShardVocabulary vocabulary = new ShardVocabulary( shardTerms.version, shardTerms.fieldRuns );
+        vocabularies.put( shardTerms.shard, vocabulary );
+        if (shardTerms.version != null) {
+          liveVocabularies.put( shardTerms.shard, vocabulary );
         }
+        ++nFetched;
       }
-    }
-  }
-    
-  private void addTerms( NamedList<NamedList<Number>> terms, SynonymMap.Builder fieldBuilder, SynonymMap.Builder termBuilder, ArrayList<String> searchFields ) throws IOException {
-    TermsResponse termsResponse = new TermsResponse( terms );
-    for (String fieldName : searchFields ) {
-      CharsRef fieldChars = new CharsRef( fieldName );
-      List<TermsResponse.Term> termList = termsResponse.getTerms( fieldName );
-      if (termList != null) {
-        for (TermsResponse.Term tc : termList) {
-          String term = tc.getTerm();
-          Log.debug( "Add distributed term: " + fieldName + " = " + term );
-          addTerm( fieldChars, term, fieldBuilder, termBuilder );
+      // drop the vocabularies of shards that are gone or were fetched again
+      for (Map.Entry<String,ShardVocabulary> entry : shardVocabularies.entrySet( ) ) {
+        if (liveVocabularies.get( entry.getKey( ) ) != entry.getValue( )) {
+          entry.getValue( ).delete( );
         }
       }
+      shardVocabularies = liveVocabularies;
+      Log.info( "fetched terms of " + nFetched + " of " + rb.shards.length + " shards" );
     }
+    return vocabularies;
   }
     
-      
   private ArrayList<String> getSynonymsFor( SynonymMap synMap, String term ) throws IOException {
     Log.debug( "getSynonymsFor '" + term + "'" );
           
@@ -958,7 +2559,7 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
   }
     
   // similar to EnglishMinimalStemmer - fixes "...hes" as in batches couches
-  public int stem(char s[], int len) {
+  public static int stem(char s[], int len) {
     if (len < 3 || s[len-1] != 's')
       return len;
         
@@ -979,43 +2580,97 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     }
   }
     
-  private ArrayList<char[]> tokenize( String input ) throws IOException {
+  private Analyzer getQueryAnalyzer( SolrCore core ) {
+    if (queryFieldType != null) {
+      FieldType fieldType = core.getLatestSchema( ).getFieldTypeByName( queryFieldType );
+      if (fieldType == null) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "Unknown queryFieldType '" + queryFieldType + "'" );
+      }
+      return fieldType.getQueryAnalyzer( );
+    }
+      
+    if (queryAnalyzerChain != null) {
+      String tokenizer = (String)queryAnalyzerChain.get( "tokenizer" );
+      if (tokenizer == null) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "queryAnalyzer has no tokenizer" );
+      }
+      try {
+        CustomAnalyzer.Builder builder = CustomAnalyzer.builder( core.getResourceLoader( ) ).withTokenizer( tokenizer );
+        for (Object filter : queryAnalyzerChain.getAll( "filter" ) ) {
+          builder.addTokenFilter( (String)filter );
+        }
+        return builder.build( );
+      }
+      catch ( IOException | IllegalArgumentException e ) {
+        throw new SolrException( SolrException.ErrorCode.SERVER_ERROR, "Can't create the queryAnalyzer: " + e.getMessage( ), e );
+      }
+    }
+      
+    return new Analyzer( ) {
+      @Override
+      protected TokenStreamComponents createComponents( String fieldName ) {
+        return new TokenStreamComponents( new StandardTokenizer( ) );
+      }
+    };
+  }
+    
+  // The analyzer reuses the token stream of the thread, so only the tokens themselves are copied
+  private QueryTokens tokenize( String input ) throws IOException {
 
     Log.debug( "tokenize '" + input + "'" );
-    ArrayList<char[]> tokens = new ArrayList<char[]>( );
-    Tokenizer tk = getTokenizerImpl( input );
-
-    CharTermAttribute term = tk.addAttribute( CharTermAttribute.class );
-    tk.reset( );
-    while (tk.incrementToken( ) ) {
-      int bufLen = term.length();
-      char[] copy = new char[ bufLen ];
-      System.arraycopy(term.buffer( ), 0, copy, 0, bufLen );
-      tokens.add( copy );
+    QueryTokens tokens = new QueryTokens( );
+    try (TokenStream tk = queryAnalyzer.tokenStream( CommonParams.Q, input )) {
+      CharTermAttribute term = tk.addAttribute( CharTermAttribute.class );
+      tk.reset( );
+      while (tk.incrementToken( ) ) {
+        tokens.add( term.buffer( ), term.length( ) );
+      }
+      tk.end( );
     }
 
     return tokens;
   }
     
-  private Tokenizer getTokenizerImpl( String input ) throws IOException {
-    StandardTokenizer sttk = new StandardTokenizer( );
-    sttk.setReader( new StringReader( input ) );
-    return sttk;
-  }
-    
   @Override
   public void process(ResponseBuilder rb) throws IOException
   {
     // do nothing - needed so we don't execute the query here.
   }
     
+  @Override
+  public NamedList getStatistics( ) {
+    NamedList<Object> stats = new SimpleOrderedMap<Object>( );
+    FieldMapSnapshot snapshot = fieldMapSnapshot.get( );
+    stats.add( "indexVersion", (snapshot != null) ? snapshot.indexVersion : -1L );
+    stats.add( "pullingSnapshots", pullingSnapshots );
+    stats.add( "fieldMapBuilds", buildCount );
+    if (rewriteCache != null) {
+      long hits = rewriteCache.getHits( );
+      long lookups = hits + rewriteCache.getMisses( );
+      stats.add( "rewriteCacheLookups", lookups );
+      stats.add( "rewriteCacheHits", hits );
+      stats.add( "rewriteCacheHitratio", (lookups > 0) ? (float)hits / lookups : 0.0f );
+      stats.add( "rewriteCacheEvictions", rewriteCache.getEvictions( ) );
+      stats.add( "rewriteCacheInvalidations", rewriteCache.getInvalidations( ) );
+      stats.add( "rewriteCacheSize", rewriteCache.size( ) );
+      stats.add( "rewriteCacheChars", rewriteCache.getChars( ) );
+    }
+    ShardVocabularyFetcher fetcher = shardFetcher;
+    stats.add( "shardTermsFetched", (fetcher != null) ? fetcher.getFetched( ) : 0L );
+    stats.add( "shardTermsUnchanged", (fetcher != null) ? fetcher.getUnchanged( ) : 0L );
+    stats.add( "shardTermsFailed", (fetcher != null) ? fetcher.getFailed( ) : 0L );
+    stats.add( "shardVersionChecks", shardVersionChecks );
+    stats.add( "staleShards", (snapshot != null && snapshot.shardPresence != null) ? snapshot.shardPresence.getStaleCount( ) : 0 );
+    return stats;
+  }
+    
   // ===========================================================================
   // Verb Modifier Code
   // Using the verb modifier map if a verb modifier is adjacent to a field mapped phrase (can have noise words between)
   // restrict the field names in the list to the one that is linked to the verb modifier
   // TODO - how to deal with 'and' and 'or' Between modifiers
   // ===========================================================================
-  private void filterFieldMap( ArrayList<char[]> queryTokens, HashMap<String,ArrayList<String>> fieldMap,
+  private void filterFieldMap( QueryTokens queryTokens, HashMap<String,ArrayList<String>> fieldMap,
                                HashMap<String,int[]> entityPositionMap, HashMap<String,int[]> fieldPositionMap ) {
         
     Log.info( "filterFieldMap" );
@@ -1069,12 +2724,11 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     }
   }
     
-  private ArrayList<ModifierInstance> getOrderedModifierPositions( ArrayList<char[]> queryTokens ) {
+  private ArrayList<ModifierInstance> getOrderedModifierPositions( QueryTokens queryTokens ) {
     ArrayList<ModifierInstance> modifiers = null;
     int i = 0;
     while (i < queryTokens.size( ) ) {
-      char[] token = queryTokens.get( i );
-      ModifierDefinition modifier = findModifier( token );
+      ModifierDefinition modifier = findModifier( queryTokens.get( i ) );
       if (modifier != null && matchesModifier( modifier.modTokens, queryTokens, i )) {
         Log.info( "Adding Modifier Instance '" + modifier.modifierPhrase + "'" );
         ModifierInstance modInst = new ModifierInstance( );
@@ -1100,19 +2754,19 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     return modifiers;
   }
     
-  private ModifierDefinition findModifier( char[] queryToken ) {
+  private ModifierDefinition findModifier( String queryToken ) {
     for (ModifierDefinition modifier : verbModifierList ) {
-      if (modifier.modifierPhrase.startsWith( new String( queryToken ) )) {
+      if (modifier.modifierPhrase.startsWith( queryToken )) {
         return modifier;
       }
     }
     return null;
   }
     
-  private boolean matchesModifier( String[] modTokens, ArrayList<char[]> queryTokens, int start ) {
+  private boolean matchesModifier( String[] modTokens, QueryTokens queryTokens, int start ) {
     int i = 0;
     while ( (start + i) < queryTokens.size( ) && i < modTokens.length ) {
-      String token = new String( queryTokens.get( start + i ) );
+      String token = queryTokens.get( start + i );
       if (!token.toLowerCase( ).equals( modTokens[i].toLowerCase( ))) return false;
       if (++i == modTokens.length) return true;
     }
@@ -1347,6 +3001,238 @@ public class QueryAutoFilteringComponent extends QueryComponent implements SolrC
     return newPosArray;
   }
     
+  // Unique values of the String fields in one segment or one shard, sorted
+  private static abstract class Vocabulary
+  {
+    // positioned on the first value of the field, null if there is none
+    abstract ValueCursor getValues( String fieldName ) throws IOException;
+  }
+    
+  // values of one segment, keyed by field name
+  private static class SegmentVocabulary extends Vocabulary
+  {
+    final HashMap<String,String[]> fieldValues = new HashMap<String,String[]>( );
+      
+    @Override
+    ValueCursor getValues( String fieldName ) {
+      String[] values = fieldValues.get( fieldName );
+      return (values != null && values.length > 0) ? new ArrayCursor( values ) : null;
+    }
+  }
+    
+  // Values of one shard, in a run file per field, and the replica and index version they were fetched from (null if
+  // unknown). The run files are deleted when the vocabulary is dropped.
+  private static class ShardVocabulary extends Vocabulary
+  {
+    final ShardVocabularyFetcher.ShardVersion version;
+    final HashMap<String,Path> fieldRuns;
+      
+    ShardVocabulary( ShardVocabularyFetcher.ShardVersion version, Map<String,Path> fieldRuns ) {
+      this.version = version;
+      this.fieldRuns = new HashMap<String,Path>( fieldRuns );
+    }
+      
+    @Override
+    ValueCursor getValues( String fieldName ) throws IOException {
+      Path runFile = fieldRuns.get( fieldName );
+      if (runFile == null) return null;
+        
+      RunCursor cursor = new RunCursor( new ShardVocabularyFetcher.TermRun( runFile ) );
+      if (cursor.next( )) return cursor;
+        
+      cursor.close( );
+      return null;
+    }
+      
+    void delete( ) {
+      ShardVocabularyFetcher.deleteRuns( fieldRuns.values( ) );
+    }
+  }
+    
+  // merges the sorted values of one field from all vocabularies, returning each distinct value once
+  private static class ValueMerger implements Closeable
+  {
+    final PriorityQueue<ValueCursor> queue;
+    final ArrayList<ValueCursor> cursors = new ArrayList<ValueCursor>( );
+    String lastValue = null;
+      
+    ValueMerger( String fieldName, List<Vocabulary> vocabularies ) throws IOException {
+      queue = new PriorityQueue<ValueCursor>( Math.max( 1, vocabularies.size( ) ) );
+      boolean success = false;
+      try {
+        for (Vocabulary vocabulary : vocabularies ) {
+          ValueCursor cursor = vocabulary.getValues( fieldName );
+          if (cursor != null) {
+            cursors.add( cursor );
+            queue.add( cursor );
+          }
+        }
+        success = true;
+      }
+      finally {
+        if (!success) {
+          close( );
+        }
+      }
+    }
+      
+    // the next distinct value, null when all values have been returned
+    String next( ) throws IOException {
+      while (!queue.isEmpty( )) {
+        ValueCursor cursor = queue.poll( );
+        String fieldValue = cursor.value( );
+        if (cursor.next( )) {
+          queue.add( cursor );
+        }
+        if (!fieldValue.equals( lastValue )) {
+          lastValue = fieldValue;
+          return fieldValue;
+        }
+      }
+      return null;
+    }
+      
+    @Override
+    public void close( ) throws IOException {
+      IOUtils.close( cursors );
+    }
+  }
+    
+  // position in the sorted values of one vocabulary during the merge
+  private static abstract class ValueCursor implements Comparable<ValueCursor>, Closeable
+  {
+    abstract String value( );
+      
+    // moves to the next value, false after the last one
+    abstract boolean next( ) throws IOException;
+      
+    @Override
+    public void close( ) throws IOException {  }
+      
+    @Override
+    public int compareTo( ValueCursor other ) {
+      return value( ).compareTo( other.value( ) );
+    }
+  }
+    
+  private static class ArrayCursor extends ValueCursor
+  {
+    final String[] values;
+    int pos = 0;
+      
+    ArrayCursor( String[] values ) {
+      this.values = values;
+    }
+      
+    @Override
+    String value( ) {
+      return values[pos];
+    }
+      
+    @Override
+    boolean next( ) {
+      return ++pos < values.length;
+    }
+  }
+    
+  // reads the run file of a shard - only the current value is on the heap
+  private static class RunCursor extends ValueCursor
+  {
+    final ShardVocabularyFetcher.TermRun run;
+    String value;
+      
+    RunCursor( ShardVocabularyFetcher.TermRun run ) {
+      this.run = run;
+    }
+      
+    @Override
+    String value( ) {
+      return value;
+    }
+      
+    @Override
+    boolean next( ) throws IOException {
+      value = run.next( );
+      return value != null;
+    }
+      
+    @Override
+    public void close( ) throws IOException {
+      run.close( );
+    }
+  }
+    
+  // Immutable field map built from one searcher. Requests take a reference once and use it throughout, so
+  // a concurrent rebuild can never hand them field names from one build and indexed terms from another.
+  private static class FieldMapSnapshot
+  {
+    final FieldValueMap fieldMap;        // Map of search terms to (fieldName, indexed term) pairs
+    final FieldMapOutputs outputs;       // the pairs of fieldMap, decoded by ordinal
+    final List<String> searchFields;     // String fields the maps were built from
+    final String shards;                 // shards the distributed terms came from, null if none were given
+    final long indexVersion;
+    final long generation;               // index commit generation
+    final String segmentsKey;            // segments the maps were built from, null if unknown
+    final long[] fieldFingerprints;      // fingerprints of the values of the searchFields, null if unknown
+    final String vocabularyKey;          // key of fieldMap in the FieldMapRegistry, null if not shared
+    final boolean complete;              // false if some shards did not answer - their values are missing
+    final ShardPresence shardPresence;   // shards of each value, null unless pruneShards is set
+      
+    FieldMapSnapshot( FieldValueMap fieldMap, FieldMapOutputs outputs, List<String> searchFields, String shards, long indexVersion,
+                      long generation, String segmentsKey, long[] fieldFingerprints, String vocabularyKey,
+                      boolean complete, ShardPresence shardPresence ) {
+      this.fieldMap = fieldMap;
+      this.outputs = outputs;
+      this.searchFields = Collections.unmodifiableList( searchFields );
+      this.shards = shards;
+      this.indexVersion = indexVersion;
+      this.generation = generation;
+      this.segmentsKey = segmentsKey;
+      this.fieldFingerprints = fieldFingerprints;
+      this.vocabularyKey = vocabularyKey;
+      this.complete = complete;
+      this.shardPresence = shardPresence;
+    }
+  }
+    
+  // the params a query is rewritten to - the same for all requests with the same query, afb and mt params
+  static class Rewrite
+  {
+    static final Rewrite NONE = new Rewrite( );
+      
+    String q;                                                      // null if the query is not rewritten
+    final ArrayList<String> filters = new ArrayList<String>( );
+    Query query;                                                   // for the AutoFilterQParserPlugin in q, or null
+    final ArrayList<Query> filterQueries = new ArrayList<Query>( ); // go to the ResponseBuilder, not parsed
+    long[] shardBits;                                              // shards to search, null for all of them
+      
+    // size in chars, for the RewriteCache
+    long getWeight( ) {
+      long weight = 16 + ((q != null) ? q.length( ) : 0) + ((shardBits != null) ? 4 * shardBits.length : 0);
+      for (String fq : filters ) {
+        weight += fq.length( );
+      }
+      for (Query fq : filterQueries ) {
+        weight += fq.toString( ).length( );
+      }
+      return weight;
+    }
+  }
+    
+  // a snapshot serialized for the cores that pull it
+  static class ServedSnapshot
+  {
+    final FieldMapSnapshot snapshot;
+    final String id;
+    final byte[] bytes;
+      
+    ServedSnapshot( FieldMapSnapshot snapshot, String id, byte[] bytes ) {
+      this.snapshot = snapshot;
+      this.id = id;
+      this.bytes = bytes;
+    }
+  }
+    
   private class ModifierDefinition
   {
     String modifierPhrase;  // the phrase that will modify like 'was in'
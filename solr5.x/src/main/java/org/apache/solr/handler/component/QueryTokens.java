@@ -0,0 +1,67 @@
+package org.apache.solr.handler.component;
+
+import java.util.Arrays;
+
+/**
+ * The tokens of a query, back to back in one char buffer - each token is its start and length in the buffer. Adding
+ * a token copies its chars once; the tokenizer's term buffer is reused for the next token.
+ */
+final class QueryTokens {
+
+  private char[] buffer = new char[ 64 ];
+  private int[] starts = new int[ 8 ];
+  private int[] lengths = new int[ 8 ];
+  private int size = 0;
+  private int end = 0;
+
+  void add( char[] chars, int length ) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf( starts, 2 * size );
+      lengths = Arrays.copyOf( lengths, 2 * size );
+    }
+    if (end + length > buffer.length) {
+      buffer = Arrays.copyOf( buffer, Math.max( 2 * buffer.length, end + length ) );
+    }
+    System.arraycopy( chars, 0, buffer, end, length );
+    starts[size] = end;
+    lengths[size] = length;
+    ++size;
+    end += length;
+  }
+
+  int size( ) {
+    return size;
+  }
+
+  /**
+   * The chars of all tokens - token i is at start( i ) ... start( i ) + length( i ). Only valid until the next add.
+   */
+  char[] buffer( ) {
+    return buffer;
+  }
+
+  int start( int token ) {
+    return starts[token];
+  }
+
+  int length( int token ) {
+    return lengths[token];
+  }
+
+  boolean equals( int token, String str ) {
+    if (lengths[token] != str.length( )) return false;
+
+    for (int i = 0; i < lengths[token]; i++) {
+      if (buffer[starts[token] + i] != str.charAt( i )) return false;
+    }
+    return true;
+  }
+
+  StringBuilder appendTo( StringBuilder strb, int token ) {
+    return strb.append( buffer, starts[token], lengths[token] );
+  }
+
+  String get( int token ) {
+    return new String( buffer, starts[token], lengths[token] );
+  }
+}
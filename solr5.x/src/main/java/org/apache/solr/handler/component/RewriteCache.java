@@ -0,0 +1,111 @@
+package org.apache.solr.handler.component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of query rewrites, bounded by the number of entries and by their size in chars. Head
+ * queries come in over and over - a hit skips tokenizing, matching and building the filter queries.
+ *
+ * Each entry is tagged with the field map snapshot it was computed from and only returned for that snapshot, so a
+ * rewrite computed by a request that started before a new snapshot was published is never served after it. The
+ * cache is cleared when a snapshot is published.
+ */
+final class RewriteCache<R> {
+
+  private final int maxEntries;
+  private final long maxChars;
+
+  private final LinkedHashMap<String,Entry<R>> entries = new LinkedHashMap<String,Entry<R>>( 16, 0.75f, true );
+  private long chars = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long invalidations = 0;
+
+  RewriteCache( int maxEntries, long maxChars ) {
+    this.maxEntries = maxEntries;
+    this.maxChars = maxChars;
+  }
+
+  /**
+   * The rewrite of the key computed from the snapshot, null if there is none.
+   */
+  synchronized R get( String key, Object snapshot ) {
+    Entry<R> entry = entries.get( key );
+    if (entry == null || entry.snapshot != snapshot) {
+      ++misses;
+      return null;
+    }
+    ++hits;
+    return entry.rewrite;
+  }
+
+  /**
+   * Adds the rewrite - weight is its size in chars - evicting the least recently used entries over the bounds.
+   */
+  synchronized void put( String key, Object snapshot, R rewrite, long weight ) {
+    weight += key.length( );
+    if (weight > maxChars) return;
+
+    Entry<R> old = entries.put( key, new Entry<R>( snapshot, rewrite, weight ) );
+    if (old != null) {
+      chars -= old.weight;
+    }
+    chars += weight;
+
+    Iterator<Map.Entry<String,Entry<R>>> it = entries.entrySet( ).iterator( );
+    while ((entries.size( ) > maxEntries || chars > maxChars) && it.hasNext( )) {
+      chars -= it.next( ).getValue( ).weight;
+      it.remove( );
+      ++evictions;
+    }
+  }
+
+  synchronized void clear( ) {
+    if (entries.isEmpty( )) return;
+
+    entries.clear( );
+    chars = 0;
+    ++invalidations;
+  }
+
+  synchronized long getHits( ) {
+    return hits;
+  }
+
+  synchronized long getMisses( ) {
+    return misses;
+  }
+
+  synchronized long getEvictions( ) {
+    return evictions;
+  }
+
+  synchronized long getInvalidations( ) {
+    return invalidations;
+  }
+
+  synchronized int size( ) {
+    return entries.size( );
+  }
+
+  synchronized long getChars( ) {
+    return chars;
+  }
+
+  private static class Entry<R>
+  {
+    final Object snapshot;
+    final R rewrite;
+    final long weight;
+
+    Entry( Object snapshot, R rewrite, long weight ) {
+      this.snapshot = snapshot;
+      this.rewrite = rewrite;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package org.apache.solr.handler.component;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Which shards have which values of the search fields. For each field, the distinct values of all shards are kept
+ * sorted, each with a bitmap of the shards it is on (nWords longs per value, bit i for shards[i]). It is built by
+ * merging the run files of the shards, so the distinct values are the only copy of the shard vocabularies on the heap.
+ *
+ * versions[i] is the index version the values of shards[i] were read at, null if the shard didn't tell. A shard is
+ * only known not to have a value while it is still at that version: shards that moved on (or can't be asked) are
+ * marked stale by the component's version checks, and a stale shard is never known not to have a value.
+ */
+final class ShardPresence {
+
+  final String[] shards;
+  final ShardVocabularyFetcher.ShardVersion[] versions;
+  private final int nWords;
+  private final HashMap<String,String[]> fieldValues = new HashMap<String,String[]>( );
+  private final HashMap<String,long[]> fieldBits = new HashMap<String,long[]>( );
+  private volatile long[] staleBits;   // replaced as a whole by setStale
+
+  private ShardPresence( String[] shards, ShardVocabularyFetcher.ShardVersion[] versions ) {
+    this.shards = shards;
+    this.versions = versions;
+    this.nWords = (shards.length + 63) / 64;
+    boolean[] stale = new boolean[ shards.length ];
+    for (int i = 0; i < shards.length; i++) {
+      stale[i] = versions[i] == null;
+    }
+    setStale( stale );
+  }
+
+  /**
+   * shardRuns has the run file (ShardVocabularyFetcher.TermRun) of each field for each of the shards, in shard order.
+   */
+  static ShardPresence build( String[] shards, ShardVocabularyFetcher.ShardVersion[] versions,
+                              List<? extends Map<String,Path>> shardRuns, List<String> searchFields ) throws IOException {
+    ShardPresence presence = new ShardPresence( shards, versions );
+    for (String searchField : searchFields ) {
+      presence.addField( searchField, shardRuns );
+    }
+    return presence;
+  }
+
+  private void addField( String fieldName, List<? extends Map<String,Path>> shardRuns ) throws IOException {
+    PriorityQueue<ShardCursor> queue = new PriorityQueue<ShardCursor>( Math.max( 1, shardRuns.size( ) ) );
+    ArrayList<ShardVocabularyFetcher.TermRun> runs = new ArrayList<ShardVocabularyFetcher.TermRun>( );
+    try {
+      for (int shard = 0; shard < shardRuns.size( ); shard++) {
+        Path runFile = shardRuns.get( shard ).get( fieldName );
+        if (runFile != null) {
+          ShardVocabularyFetcher.TermRun run = new ShardVocabularyFetcher.TermRun( runFile );
+          runs.add( run );
+          ShardCursor cursor = new ShardCursor( shard, run );
+          if (cursor.next( )) {
+            queue.add( cursor );
+          }
+        }
+      }
+      if (queue.isEmpty( )) return;
+
+      ArrayList<String> values = new ArrayList<String>( );
+      long[] bits = new long[ 64 * nWords ];
+      while (!queue.isEmpty( )) {
+        ShardCursor cursor = queue.poll( );
+        String value = cursor.value;
+        if (values.isEmpty( ) || !value.equals( values.get( values.size( ) - 1 ) )) {
+          values.add( value );
+          bits = ArrayUtil.grow( bits, values.size( ) * nWords );
+        }
+        int word = (values.size( ) - 1) * nWords + (cursor.shard >>> 6);
+        bits[word] |= 1L << (cursor.shard & 63);
+        if (cursor.next( )) {
+          queue.add( cursor );
+        }
+      }
+      fieldValues.put( fieldName, values.toArray( new String[ values.size( ) ] ) );
+      fieldBits.put( fieldName, Arrays.copyOf( bits, values.size( ) * nWords ) );
+    }
+    finally {
+      IOUtils.close( runs );
+    }
+  }
+
+  long[] newBits( ) {
+    return new long[ nWords ];
+  }
+
+  /**
+   * ORs the shards that have the value in the field into bits - none if no shard has it.
+   */
+  void addShards( String fieldName, String value, long[] bits ) {
+    String[] values = fieldValues.get( fieldName );
+    if (values == null) return;
+
+    int pos = Arrays.binarySearch( values, value );
+    if (pos < 0) return;
+
+    long[] valueBits = fieldBits.get( fieldName );
+    for (int i = 0; i < nWords; i++) {
+      bits[i] |= valueBits[pos * nWords + i];
+    }
+  }
+
+  static boolean hasShard( long[] bits, int shard ) {
+    return (bits[shard >>> 6] & (1L << (shard & 63))) != 0;
+  }
+
+  /**
+   * Whether the values of the shard may have changed since they were read.
+   */
+  boolean isStale( int shard ) {
+    return hasShard( staleBits, shard );
+  }
+
+  /**
+   * Marks the shards that may have changed, in shards order - the others are known to be at their version again.
+   */
+  void setStale( boolean[] stale ) {
+    long[] bits = newBits( );
+    for (int i = 0; i < stale.length; i++) {
+      if (stale[i]) {
+        bits[i >>> 6] |= 1L << (i & 63);
+      }
+    }
+    staleBits = bits;
+  }
+
+  int getStaleCount( ) {
+    int count = 0;
+    for (long word : staleBits ) {
+      count += Long.bitCount( word );
+    }
+    return count;
+  }
+
+  // position in the run file of one shard during the merge
+  private static class ShardCursor implements Comparable<ShardCursor>
+  {
+    final int shard;
+    final ShardVocabularyFetcher.TermRun run;
+    String value;
+
+    ShardCursor( int shard, ShardVocabularyFetcher.TermRun run ) {
+      this.shard = shard;
+      this.run = run;
+    }
+
+    boolean next( ) throws IOException {
+      value = run.next( );
+      return value != null;
+    }
+
+    @Override
+    public int compareTo( ShardCursor other ) {
+      return value.compareTo( other.value );
+    }
+  }
+}
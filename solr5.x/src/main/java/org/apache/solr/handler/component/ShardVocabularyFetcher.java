@@ -0,0 +1,515 @@
+package org.apache.solr.handler.component;
+
+import org.apache.http.client.HttpClient;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.OfflineSorter;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.TermsParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fetches the terms of the search fields from every shard of a distributed index, in parallel - at most fetchThreads
+ * shards at a time.
+ *
+ * A shard is a list of replica URLs separated by '|' (as in the shards parameter). A request that fails or times out
+ * is retried on the next replica of the shard. When all replicas have failed, they are tried again, up to shardRetries
+ * times. Every shard gets an answer - its terms or
+ * the error of its last attempt - so the caller knows whether the vocabulary is complete.
+ *
+ * The terms of each field are fetched in pages of pageSize terms, so no shard has to serialize (and the coordinator
+ * doesn't have to parse) its whole vocabulary in one response. Each page is written to a temp file as it arrives, and
+ * the file is sorted on disk (OfflineSorter, the shards sharing sortBufferBytes) into a run file of the field - at most
+ * one page of a shard is on the heap. The run files are in a temp directory of the fetcher, which is removed when the
+ * fetcher is closed. The caller owns the run files it is given, and deletes them when it no longer needs them.
+ *
+ * Before fetching the terms, the index version of the replica is read (/admin/luke?show=index, which doesn't touch
+ * the terms). If the caller already has the terms of that replica and version, they are not fetched again.
+ *
+ * If the shards have an AutoFilterVocabularyHandler (vocabularyHandler is set), the version and the terms come from
+ * that handler instead, with the terms front coded in one byte array per page - no per-term counts, no per-term
+ * response objects.
+ */
+class ShardVocabularyFetcher implements Closeable {
+
+  private static final Logger Log = LoggerFactory.getLogger( ShardVocabularyFetcher.class );
+
+  static final String VERSION_HANDLER = "/admin/luke";
+
+  private final int shardTimeout;
+  private final int shardRetries;
+  private final int pageSize;
+  private final String termsHandler;
+  private final String vocabularyHandler;  // null to use the termsHandler
+  private final int fetchThreads;
+  private final long sortBufferBytes;      // sort buffer of all shards fetched at once
+  private final Path runDir;               // run files of the fetched terms
+
+  private final HttpClient httpClient;
+  private final ExecutorService fetchExecutor;
+
+  // shard answers since the fetcher was created - guarded by this
+  private long fetched = 0;
+  private long unchanged = 0;
+  private long failed = 0;
+
+  ShardVocabularyFetcher( int shardTimeout, int shardRetries, int pageSize, String termsHandler, String vocabularyHandler,
+                          int fetchThreads, long sortBufferBytes ) throws IOException {
+    this.shardTimeout = shardTimeout;
+    this.shardRetries = shardRetries;
+    this.pageSize = pageSize;
+    this.termsHandler = termsHandler;
+    this.vocabularyHandler = vocabularyHandler;
+    this.fetchThreads = fetchThreads;
+    this.sortBufferBytes = sortBufferBytes;
+    this.runDir = Files.createTempDirectory( OfflineSorter.defaultTempDir( ), "autofilterShards" );
+
+    ModifiableSolrParams clientParams = new ModifiableSolrParams( );
+    clientParams.set( HttpClientUtil.PROP_SO_TIMEOUT, shardTimeout );
+    clientParams.set( HttpClientUtil.PROP_CONNECTION_TIMEOUT, shardTimeout );
+    clientParams.set( HttpClientUtil.PROP_USE_RETRY, false );
+    this.httpClient = HttpClientUtil.createClient( clientParams );
+    ThreadPoolExecutor fetchExecutor = new ThreadPoolExecutor( fetchThreads, fetchThreads, 60, TimeUnit.SECONDS,
+                                                               new LinkedBlockingQueue<Runnable>( ),
+                                                               new DefaultSolrThreadFactory( "autofilterShardFetch" ) );
+    fetchExecutor.allowCoreThreadTimeOut( true );
+    this.fetchExecutor = fetchExecutor;
+  }
+
+  /**
+   * The terms of the shards, in shard order. Returns when every shard has answered or failed.
+   * knownVersions has the replica and index version of the terms the caller has for a shard - such shards are
+   * asked that replica first, and answer unchanged (no response) if its version is the same.
+   */
+  List<ShardTerms> fetch( List<String> shards, final List<String> searchFields, ShardHandlerFactory shardHandlerFactory,
+                          Map<String,ShardVersion> knownVersions ) {
+    ArrayList<Future<ShardTerms>> futures = new ArrayList<Future<ShardTerms>>( shards.size( ) );
+    int nParallel = Math.max( 1, Math.min( shards.size( ), fetchThreads ) );
+    final long sortBufferMB = Math.max( 1, sortBufferBytes / nParallel / OfflineSorter.MB );
+    int maxReplicas = 1;
+    for (final String shard : shards ) {
+      final List<String> replicas = getReplicaUrls( shard, shardHandlerFactory );
+      final ShardVersion known = knownVersions.get( shard );
+      if (known != null && replicas.remove( known.url )) {
+        // the replica the terms came from - the other replicas have the same terms, but a different version
+        replicas.add( 0, known.url );
+      }
+      maxReplicas = Math.max( maxReplicas, replicas.size( ) );
+      futures.add( fetchExecutor.submit( new Callable<ShardTerms>( ) {
+        @Override
+        public ShardTerms call( ) {
+          return fetchShard( shard, replicas, searchFields, known, sortBufferMB );
+        }
+      } ) );
+    }
+
+    ArrayList<ShardTerms> results = new ArrayList<ShardTerms>( shards.size( ) );
+    // each attempt is bounded by the socket timeout - this only catches a shard that keeps trickling data. The shards
+    // beyond fetchThreads wait for a thread.
+    int rounds = (shards.size( ) + fetchThreads - 1) / fetchThreads;
+    long deadline = System.nanoTime( ) + TimeUnit.MILLISECONDS.toNanos( (long)shardTimeout * (shardRetries + 1) * maxReplicas
+                                                                        * Math.max( 1, rounds ) );
+    for (int i = 0; i < futures.size( ); i++) {
+      Future<ShardTerms> future = futures.get( i );
+      try {
+        results.add( future.get( Math.max( 0, deadline - System.nanoTime( ) ), TimeUnit.NANOSECONDS ) );
+      }
+      catch ( TimeoutException te ) {
+        future.cancel( true );
+        results.add( new ShardTerms( shards.get( i ), null, null, null, te ) );
+      }
+      catch ( InterruptedException ie ) {
+        Thread.currentThread( ).interrupt( );
+        future.cancel( true );
+        results.add( new ShardTerms( shards.get( i ), null, null, null, ie ) );
+      }
+      catch ( ExecutionException ee ) {
+        results.add( new ShardTerms( shards.get( i ), null, null, null, ee.getCause( ) ) );
+      }
+    }
+    count( results );
+    return results;
+  }
+
+  private synchronized void count( List<ShardTerms> results ) {
+    for (ShardTerms shardTerms : results ) {
+      if (shardTerms.exception != null) {
+        ++failed;
+      }
+      else if (shardTerms.fieldRuns == null) {
+        ++unchanged;
+      }
+      else {
+        ++fetched;
+      }
+    }
+  }
+
+  /**
+   * The number of shards whose terms were fetched.
+   */
+  synchronized long getFetched( ) {
+    return fetched;
+  }
+
+  /**
+   * The number of shards that answered with an unchanged index version.
+   */
+  synchronized long getUnchanged( ) {
+    return unchanged;
+  }
+
+  /**
+   * The number of shards whose replicas all failed.
+   */
+  synchronized long getFailed( ) {
+    return failed;
+  }
+
+  /**
+   * The current index version of the replica of each known version - null for a replica that doesn't tell within
+   * shardTimeout ms (or for a null known version). The replicas are asked in parallel.
+   */
+  ShardVersion[] getVersions( ShardVersion[] versions ) {
+    ArrayList<Future<ShardVersion>> futures = new ArrayList<Future<ShardVersion>>( versions.length );
+    for (final ShardVersion known : versions ) {
+      futures.add( (known == null) ? null : fetchExecutor.submit( new Callable<ShardVersion>( ) {
+        @Override
+        public ShardVersion call( ) throws Exception {
+          try (HttpSolrClient client = new HttpSolrClient( known.url, httpClient )) {
+            return getVersion( client, known.url );
+          }
+        }
+      } ) );
+    }
+
+    ShardVersion[] current = new ShardVersion[ versions.length ];
+    int rounds = (versions.length + fetchThreads - 1) / fetchThreads;
+    long deadline = System.nanoTime( ) + TimeUnit.MILLISECONDS.toNanos( (long)shardTimeout * Math.max( 1, rounds ) );
+    for (int i = 0; i < futures.size( ); i++) {
+      Future<ShardVersion> future = futures.get( i );
+      if (future == null) continue;
+      try {
+        current[i] = future.get( Math.max( 0, deadline - System.nanoTime( ) ), TimeUnit.NANOSECONDS );
+      }
+      catch ( TimeoutException te ) {
+        future.cancel( true );
+        Log.warn( "No index version from " + versions[i].url + " within " + shardTimeout + " ms" );
+      }
+      catch ( InterruptedException ie ) {
+        Thread.currentThread( ).interrupt( );
+        future.cancel( true );
+      }
+      catch ( ExecutionException ee ) {
+        Log.warn( "Reading the index version of " + versions[i].url + " got Exception " + ee.getCause( ) );
+      }
+    }
+    return current;
+  }
+
+  private ShardTerms fetchShard( String shard, List<String> replicas, List<String> searchFields, ShardVersion known,
+                                 long sortBufferMB ) {
+    Throwable lastError = null;
+    int attempts = (shardRetries + 1) * replicas.size( );
+    for (int attempt = 0; attempt < attempts && !Thread.currentThread( ).isInterrupted( ); attempt++) {
+      // fail over to the next replica
+      String url = replicas.get( attempt % replicas.size( ) );
+      try (HttpSolrClient client = new HttpSolrClient( url, httpClient )) {
+        // read before the terms - if the index changes in between, the version is older and the terms are fetched again
+        ShardVersion version = getVersion( client, url );
+        if (version != null && version.equals( known )) {
+          Log.debug( "terms of " + url + " unchanged at version " + version.version );
+          return new ShardTerms( shard, url, null, version, null );
+        }
+          
+        long start = System.currentTimeMillis( );
+        HashMap<String,Path> fieldRuns = new HashMap<String,Path>( );
+        boolean success = false;
+        try {
+          for (String searchField : searchFields ) {
+            fieldRuns.put( searchField, fetchValues( client, searchField, sortBufferMB ) );
+          }
+          success = true;
+        }
+        finally {
+          if (!success) {
+            deleteRuns( fieldRuns.values( ) );
+          }
+        }
+        Log.debug( "got terms from " + url + " in " + (System.currentTimeMillis( ) - start) + " ms" );
+        return new ShardTerms( shard, url, fieldRuns, version, null );
+      }
+      catch ( Exception e ) {
+        Log.warn( "Fetching terms from " + url + " (attempt " + (attempt + 1) + ") got Exception " + e );
+        lastError = e;
+      }
+    }
+    return new ShardTerms( shard, null, null, null, lastError );
+  }
+    
+  // The index version of the replica's searcher, or null if the replica can't tell (then the terms are always fetched).
+  // Transport errors are thrown - the replica is down.
+  private ShardVersion getVersion( HttpSolrClient client, String url ) throws SolrServerException, IOException {
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    if (vocabularyHandler != null) {
+      params.set( CommonParams.QT, vocabularyHandler );
+    }
+    else {
+      params.set( CommonParams.QT, VERSION_HANDLER );
+      params.set( "show", "index" );
+      params.set( "numTerms", 0 );
+    }
+    params.set( CommonParams.DISTRIB, "false" );
+    try {
+      NamedList<Object> response = client.request( new QueryRequest( params ) );
+      Object version = (vocabularyHandler != null) ? response.get( AutoFilterVocabularyHandler.VERSION )
+                                                   : response.findRecursive( "index", "version" );
+      return (version instanceof Number) ? new ShardVersion( url, ((Number)version).longValue( ) ) : null;
+    }
+    catch ( HttpSolrClient.RemoteSolrException rse ) {
+      Log.debug( "no index version from " + url + ": " + rse );
+      return null;
+    }
+  }
+
+  // Run file of the values of the field, sorted as Strings. Each page starts after the last term of the previous one,
+  // and is written out before the next one is requested.
+  private Path fetchValues( HttpSolrClient client, String searchField, long sortBufferMB ) throws SolrServerException, IOException {
+    Path unsortedFile = Files.createTempFile( runDir, "terms", ".unsorted" );
+    Path runFile = null;
+    boolean success = false;
+    try {
+      try (OfflineSorter.ByteSequencesWriter writer = new OfflineSorter.ByteSequencesWriter( unsortedFile )) {
+        ArrayList<String> values = new ArrayList<String>( pageSize );
+        BytesRefBuilder bytes = new BytesRefBuilder( );
+        String lower = null;
+        int nAdded;
+        do {
+          values.clear( );
+          nAdded = (vocabularyHandler != null) ? addVocabularyPage( client, searchField, lower, values )
+                                               : addTermsPage( client, searchField, lower, values );
+          for (String value : values ) {
+            bytes.copyChars( value );
+            writer.write( bytes.get( ) );
+          }
+          if (nAdded > 0) {
+            lower = values.get( nAdded - 1 );
+          }
+        } while (nAdded == pageSize);
+      }
+        
+      runFile = Files.createTempFile( runDir, "terms", ".run" );
+      // terms come in UTF-8 order, the merge compares Strings
+      OfflineSorter sorter = new OfflineSorter( BytesRef.getUTF8SortedAsUTF16Comparator( ),
+                                                OfflineSorter.BufferSize.megabytes( sortBufferMB ), runDir,
+                                                OfflineSorter.MAX_TEMPFILES );
+      sorter.sort( unsortedFile, runFile );
+      success = true;
+      return runFile;
+    }
+    finally {
+      IOUtils.deleteFilesIgnoringExceptions( unsortedFile );
+      if (!success && runFile != null) {
+        IOUtils.deleteFilesIgnoringExceptions( runFile );
+      }
+    }
+  }
+    
+  private int addVocabularyPage( HttpSolrClient client, String searchField, String lower, List<String> values )
+      throws SolrServerException, IOException {
+    NamedList<Object> response = client.request( new QueryRequest( getVocabularyParams( searchField, lower ) ) );
+    Number count = (Number)response.get( AutoFilterVocabularyHandler.COUNT );
+    byte[] page = (byte[])response.get( AutoFilterVocabularyHandler.VALUES );
+    if (count == null || page == null) {
+      throw new SolrServerException( "no values in response - make sure that the " + vocabularyHandler
+                                   + " request handler is defined in solrconfig.xml" );
+    }
+    AutoFilterVocabularyHandler.decodeValues( page, count.intValue( ), values );
+    return count.intValue( );
+  }
+    
+  private int addTermsPage( HttpSolrClient client, String searchField, String lower, List<String> values )
+      throws SolrServerException, IOException {
+    QueryRequest req = new QueryRequest( getTermsParams( searchField, lower ) );
+    req.setMethod( SolrRequest.METHOD.POST );
+    NamedList<Object> response = client.request( req );
+    NamedList<?> terms = (NamedList<?>)response.get( "terms" );
+    if (terms == null) {
+      throw new SolrServerException( "no terms in response - make sure that the " + termsHandler
+                                   + " request handler is defined in solrconfig.xml" );
+    }
+      
+    NamedList<?> page = (NamedList<?>)terms.get( searchField );
+    int nTerms = (page != null) ? page.size( ) : 0;
+    for (int i = 0; i < nTerms; i++) {
+      values.add( page.getName( i ) );
+    }
+    return nTerms;
+  }
+    
+  private ModifiableSolrParams getVocabularyParams( String searchField, String lower ) {
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    params.set( AutoFilterVocabularyHandler.FIELD, searchField );
+    params.set( AutoFilterVocabularyHandler.LIMIT, pageSize );
+    if (lower != null) {
+      params.set( AutoFilterVocabularyHandler.LOWER, lower );
+    }
+    params.set( CommonParams.DISTRIB, "false" );
+    params.set( CommonParams.QT, vocabularyHandler );
+    return params;
+  }
+    
+  private ModifiableSolrParams getTermsParams( String searchField, String lower ) {
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    params.set( TermsParams.TERMS_LIMIT, pageSize );
+    params.set( TermsParams.TERMS_SORT, TermsParams.TERMS_SORT_INDEX );
+    params.set( TermsParams.TERMS_FIELD, searchField );
+    if (lower != null) {
+      params.set( TermsParams.TERMS_LOWER, lower );
+      params.set( TermsParams.TERMS_LOWER_INCLUSIVE, false );
+    }
+    params.set( CommonParams.DISTRIB, "false" );
+    params.set( ShardParams.IS_SHARD, true );
+    params.set( ShardParams.SHARDS_PURPOSE, ShardRequest.PURPOSE_GET_TERMS );
+    params.set( CommonParams.QT, termsHandler );
+    params.set( TermsParams.TERMS, "true" );
+    return params;
+  }
+
+  // the HttpShardHandlerFactory adds its url scheme and shuffles the replicas, as for search requests
+  private static List<String> getReplicaUrls( String shard, ShardHandlerFactory shardHandlerFactory ) {
+    if (shardHandlerFactory instanceof HttpShardHandlerFactory) {
+      return ((HttpShardHandlerFactory)shardHandlerFactory).makeURLList( shard );
+    }
+
+    List<String> urls = StrUtils.splitSmart( shard, "|", true );
+    for (int i = 0; i < urls.size( ); i++) {
+      if (urls.get( i ).indexOf( "://" ) < 0) {
+        urls.set( i, "http://" + urls.get( i ) );
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * Deletes run files of the fetched terms.
+   */
+  static void deleteRuns( Collection<Path> runFiles ) {
+    IOUtils.deleteFilesIgnoringExceptions( runFiles );
+  }
+
+  @Override
+  public void close( ) {
+    ExecutorUtil.shutdownNowAndAwaitTermination( fetchExecutor );
+    HttpClientUtil.close( httpClient );
+    // with the run files of fetches that were given up on
+    try {
+      IOUtils.rm( runDir );
+    }
+    catch ( IOException ioe ) {
+      Log.warn( "Could not remove " + runDir + ": " + ioe );
+    }
+  }
+
+  /**
+   * The run files of the search fields of one shard, or the error that kept the shard from answering. If both are null,
+   * the terms are unchanged since the known version.
+   */
+  static class ShardTerms
+  {
+    final String shard;
+    final String url;                      // replica that answered
+    final Map<String,Path> fieldRuns;      // values of each field, sorted as Strings - see TermRun
+    final ShardVersion version;            // version of the terms, null if unknown
+    final Throwable exception;
+
+    ShardTerms( String shard, String url, Map<String,Path> fieldRuns, ShardVersion version, Throwable exception ) {
+      this.shard = shard;
+      this.url = url;
+      this.fieldRuns = fieldRuns;
+      this.version = version;
+      this.exception = exception;
+    }
+  }
+
+  /**
+   * Reads the values of a run file in order, one at a time.
+   */
+  static class TermRun implements Closeable
+  {
+    private final OfflineSorter.ByteSequencesReader reader;
+    private final BytesRefBuilder bytes = new BytesRefBuilder( );
+
+    TermRun( Path runFile ) throws IOException {
+      this.reader = new OfflineSorter.ByteSequencesReader( runFile );
+    }
+
+    // the next value, null after the last one
+    String next( ) throws IOException {
+      return reader.read( bytes ) ? bytes.get( ).utf8ToString( ) : null;
+    }
+
+    @Override
+    public void close( ) throws IOException {
+      reader.close( );
+    }
+  }
+
+  /**
+   * The index version of one replica. Replicas of a shard have the same terms, but each has its own version.
+   */
+  static class ShardVersion
+  {
+    final String url;
+    final long version;
+
+    ShardVersion( String url, long version ) {
+      this.url = url;
+      this.version = version;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+      if (!(o instanceof ShardVersion)) return false;
+      ShardVersion other = (ShardVersion)o;
+      return url.equals( other.url ) && version == other.version;
+    }
+
+    @Override
+    public int hashCode( ) {
+      return url.hashCode( ) * 31 + (int)(version ^ (version >>> 32));
+    }
+  }
+}
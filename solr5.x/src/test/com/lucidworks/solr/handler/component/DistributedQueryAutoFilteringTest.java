@@ -1,15 +1,32 @@
 package org.apache.solr.handler.component;
 
 import org.apache.solr.BaseDistributedSearchTestCase;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.embedded.JettySolrRunner;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.servlet.SolrDispatchFilter;
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 
 public class DistributedQueryAutoFilteringTest extends BaseDistributedSearchTestCase {
 
+  // the shards of all requests - getShardsString( ) adds random dead replicas on every call, which would make every
+  // request a new shard list
+  private String shardsString;
+
   public DistributedQueryAutoFilteringTest() {
     stress = 0;
   }
@@ -19,6 +36,19 @@ public class DistributedQueryAutoFilteringTest extends BaseDistributedSearchTest
     initCore( "solrconfig-autofilter.xml", "schema-autofilter.xml" );
   }
     
+  @AfterClass
+  public static void tearDownAfterClass() throws Exception {
+    System.clearProperty( "autofilter.snapshotSource" );
+  }
+    
+  // the shards' autofilterPull components pull the field map of the control core
+  @Override
+  protected JettySolrRunner createControlJetty() throws Exception {
+    JettySolrRunner jetty = super.createControlJetty( );
+    System.setProperty( "autofilter.snapshotSource", buildUrl( jetty.getLocalPort( ) ) + "/collection1" );
+    return jetty;
+  }
+    
   @Test
   @ShardsFixed(num = 3)
   public void test() throws Exception {
@@ -38,10 +68,15 @@ public class DistributedQueryAutoFilteringTest extends BaseDistributedSearchTest
     index( id, "12", "brand", "heinz", "product", "red wine vinegar" );
     index( id, "13", "brand", "dole",  "product", "red grapes" );
     index( id, "14", "brand", "acme",  "product", "red brick" );
+    // only on some of the shards
+    index_specific( 0, id, "15", "color", "teal", "product", "boots" );
+    index_specific( 1, id, "16", "color", "teal", "product", "sandals" );
     commit();
       
     handle.put("distrib", SKIP);
     handle.put("shards", SKIP);
+    shardsString = getShardsString( );
+    buildFieldMaps( shardsString, "autofilter", "autofilterVH" );
       
     QueryResponse rsp;
     rsp = query( CommonParams.Q, "red lion socks", "fl", "id", "rows", 20, "qt", "/select", "sort", "id asc" );
@@ -58,6 +93,138 @@ public class DistributedQueryAutoFilteringTest extends BaseDistributedSearchTest
       
     rsp = query( CommonParams.Q, "red wine vinegar", "fl", "id", "qt", "/autofilter" );
     assertFieldValues(rsp.getResults(), id, "12" );
+      
+    // the same shards in another order use the same maps - the first request is autofiltered on every server
+    List<String> shardList = Arrays.asList( shardsString.split( "," ) );
+    Collections.reverse( shardList );
+    for (SolrClient client : clients ) {
+      ModifiableSolrParams params = new ModifiableSolrParams( );
+      params.set( CommonParams.Q, "red lion socks" );
+      params.set( "fl", "id" );
+      params.set( "qt", "/autofilter" );
+      params.set( "sort", "id asc" );
+      params.set( "shards", StrUtils.join( shardList, ',' ) );
+      assertFieldValues(client.query( params ).getResults(), id, "4", "5" );
+    }
+      
+    // shard terms from the AutoFilterVocabularyHandler
+    rsp = query( CommonParams.Q, "red lion socks", "fl", "id", "qt", "/autofilterVH", "sort", "id asc" );
+    assertFieldValues(rsp.getResults(), id, "4", "5" );
+      
+    rsp = query( CommonParams.Q, "red wine vinegar", "fl", "id", "qt", "/autofilterVH" );
+    assertFieldValues(rsp.getResults(), id, "12" );
+      
+    // autofilterVH prunes the shards: teal is on shards 0 and 1, boots on shard 0 only
+    rsp = query( CommonParams.Q, "teal boots", "fl", "id", "qt", "/autofilterVH", ShardParams.SHARDS_INFO, "true" );
+    assertFieldValues(rsp.getResults(), id, "15" );
+    assertEquals( 1, ((NamedList<?>)rsp.getResponse( ).get( ShardParams.SHARDS_INFO )).size( ) );
+      
+    rsp = query( CommonParams.Q, "teal", "fl", "id", "qt", "/autofilterVH", "sort", "id asc", ShardParams.SHARDS_INFO, "true" );
+    assertFieldValues(rsp.getResults(), id, "15", "16" );
+    assertEquals( 2, ((NamedList<?>)rsp.getResponse( ).get( ShardParams.SHARDS_INFO )).size( ) );
+      
+    // boots added to shard 1 - once the version check of server 0 sees that the version of shard 1 moved, shard 1 is
+    // not pruned, whether or not the rebuild it starts is done
+    QueryAutoFilteringComponent pruning = getComponent( jettys.get( 0 ), "autofilterVH" );
+    index_specific( 1, id, "18", "color", "teal", "product", "boots" );
+    clients.get( 1 ).commit( );
+    long checks = getStatistic( pruning, "shardVersionChecks" );
+    pruning.checkShardVersions( );
+    assertTrue( getStatistic( pruning, "shardVersionChecks" ) > checks );
+    ModifiableSolrParams staleParams = new ModifiableSolrParams( );
+    staleParams.set( CommonParams.Q, "teal boots" );
+    staleParams.set( "fl", "id" );
+    staleParams.set( "qt", "/autofilterVH" );
+    staleParams.set( "sort", "id asc" );
+    staleParams.set( "shards", shardsString );
+    staleParams.set( ShardParams.SHARDS_INFO, "true" );
+    rsp = clients.get( 0 ).query( staleParams );
+    assertFieldValues(rsp.getResults(), id, "15", "18" );
+    assertEquals( 2, ((NamedList<?>)rsp.getResponse( ).get( ShardParams.SHARDS_INFO )).size( ) );
+      
+    // the shards don't build the autofilterPull maps, they pull them from the control core
+    for (JettySolrRunner jetty : jettys ) {
+      assertTrue( getComponent( jetty, "autofilterPull" ).isPullingSnapshots( ) );
+    }
+    assertFalse( getComponent( controlJetty, "autofilterPull" ).isPullingSnapshots( ) );
+    rsp = null;
+    for (int i = 0; i < 100 && (rsp == null || rsp.getResults( ).getNumFound( ) != 2); i++) {
+      if (rsp != null) Thread.sleep( 100 );
+      rsp = query( CommonParams.Q, "red lion socks", "fl", "id", "qt", "/autofilterPull", "sort", "id asc" );
+    }
+    assertFieldValues(rsp.getResults(), id, "4", "5" );
+      
+    // a commit on one shard - only the terms of that shard are fetched again. The control server builds the map: its
+    // own index is not one of the shards, and a commit on it starts its build after the shard's searcher is registered.
+    int nShards = shardsString.split( "," ).length;
+    QueryAutoFilteringComponent component = getComponent( controlJetty, "autofilterVH" );
+    ModifiableSolrParams controlParams = new ModifiableSolrParams( );
+    controlParams.set( CommonParams.Q, "*:*" );
+    controlParams.set( "rows", 0 );
+    controlParams.set( "qt", "/autofilterVH" );
+    controlParams.set( "shards", shardsString );
+    controlClient.query( controlParams );
+    component.waitForFieldMap( );
+    long fetched = getStatistic( component, "shardTermsFetched" );
+    long unchanged = getStatistic( component, "shardTermsUnchanged" );
+    index_specific( 1, id, "17", "color", "mauve", "product", "scarf" );
+    clients.get( 1 ).commit( );
+    controlClient.add( sdoc( id, "19", "color", "ochre", "product", "scarf" ) );
+    controlClient.commit( );
+    component.waitForFieldMap( );
+    assertEquals( fetched + 1, getStatistic( component, "shardTermsFetched" ) );
+    assertEquals( unchanged + nShards - 1, getStatistic( component, "shardTermsUnchanged" ) );
+    assertTrue( component.getFieldValueMap( ).lookup( "mauve" ) >= 0 );
+      
+    // two dead replicas in front of every shard - the terms requests fail over to the live one
+    long[] failed = new long[ jettys.size( ) ];
+    for (int i = 0; i < jettys.size( ); i++) {
+      failed[i] = getStatistic( getComponent( jettys.get( i ), "autofilter" ), "shardTermsFailed" );
+    }
+    StringBuilder shards = new StringBuilder( );
+    for (String shard : shardsString.split( "," ) ) {
+      if (shards.length( ) > 0) shards.append( "," );
+      shards.append( "127.0.0.1:1/solr/collection1|127.0.0.1:2/solr/collection1|" ).append( shard );
+    }
+    buildFieldMaps( shards.toString( ), "autofilter" );
+    for (int i = 0; i < jettys.size( ); i++) {
+      assertEquals( failed[i], getStatistic( getComponent( jettys.get( i ), "autofilter" ), "shardTermsFailed" ) );
+    }
+    ModifiableSolrParams params = new ModifiableSolrParams( );
+    params.set( CommonParams.Q, "red lion socks" );
+    params.set( "fl", "id" );
+    params.set( "qt", "/autofilter" );
+    params.set( "sort", "id asc" );
+    params.set( "shards", shards.toString( ) );
+    rsp = queryServer( params );
+    assertFieldValues(rsp.getResults(), id, "4", "5" );
+  }
+   
+  private long getStatistic( QueryAutoFilteringComponent component, String name ) {
+    return ((Number)component.getStatistics( ).get( name )).longValue( );
+  }
+   
+  // Requests with a new shards list are not autofiltered - they hand the list to the builder. Sends one to every
+  // server for each component, then waits until the maps of the shards are built.
+  private void buildFieldMaps( String shards, String... components ) throws Exception {
+    for (int i = 0; i < clients.size( ); i++) {
+      for (String component : components ) {
+        ModifiableSolrParams params = new ModifiableSolrParams( );
+        params.set( CommonParams.Q, "*:*" );
+        params.set( "rows", 0 );
+        params.set( "qt", "/" + component );
+        params.set( "shards", shards );
+        clients.get( i ).query( params );
+        getComponent( jettys.get( i ), component ).waitForFieldMap( );
+      }
+    }
+  }
+   
+  private QueryAutoFilteringComponent getComponent( JettySolrRunner jetty, String name ) {
+    CoreContainer cores = ((SolrDispatchFilter)jetty.getDispatchFilter( ).getFilter( )).getCores( );
+    try (SolrCore core = cores.getCore( "collection1" )) {
+      return (QueryAutoFilteringComponent)core.getSearchComponent( name );
+    }
   }
    
   @Override
@@ -68,7 +235,7 @@ public class DistributedQueryAutoFilteringTest extends BaseDistributedSearchTest
     for (int i = 0; i < q.length; i += 2) {
       params.add(q[i].toString(), q[i + 1].toString());
     }
-    params.set("shards", getShardsString());
+    params.set("shards", shardsString);
       
     return queryServer(params);
   }
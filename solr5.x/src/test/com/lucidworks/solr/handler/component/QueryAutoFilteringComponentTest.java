@@ -3,10 +3,29 @@ package org.apache.solr.handler.component;
 import org.apache.solr.SolrTestCaseJ4;
 import org.apache.solr.common.params.CommonParams;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMOutputStream;
+import org.apache.lucene.util.CharsRef;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CountDownLatch;
+
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.sun.management.ThreadMXBean;
+
 public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     
   @BeforeClass
@@ -24,6 +43,17 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     super.tearDown();
   }
     
+  // field maps are rebuilt in the background after a commit - wait for them before querying
+  private static void commitAndWait( ) {
+    assertU(commit());
+    for (String name : h.getCore().getSearchComponents().keySet() ) {
+      SearchComponent component = h.getCore().getSearchComponent( name );
+      if (component instanceof QueryAutoFilteringComponent) {
+        ((QueryAutoFilteringComponent)component).waitForFieldMap( );
+      }
+    }
+  }
+    
   @Test
   public void testColors( ) {
     clearIndex();
@@ -34,7 +64,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "4", "color", "green", "brand", "red lion",     "product", "socks"));
     assertU(adoc("id", "5", "color", "blue",  "brand", "green dragon", "product", "socks" ));
     assertU(adoc("id", "6", "color", "black", "brand", "buster brown", "product", "shoes" ));
-    assertU(commit());
+    commitAndWait();
       
     assertQ("", req(CommonParams.Q, "red lion socks", CommonParams.QT, "/select" )
             , "//*[@numFound='5']"
@@ -71,6 +101,639 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
       
   }
     
+  @Test
+  public void testFreeTextFilters( ) {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",  "product", "shoes", "description_t", "cheap leather" ));
+    assertU(adoc("id", "2", "color", "red",  "product", "socks", "description_t", "cheap wool" ));
+    assertU(adoc("id", "3", "color", "blue", "product", "shoes", "description_t", "cheap canvas" ));
+    assertU(adoc("id", "4", "color", "red",  "product", "shoes", "description_t", "expensive leather" ));
+    commitAndWait();
+
+    // the free text is the query, one filter query per field
+    assertQ("", req(CommonParams.Q, "cheap red shoes", CommonParams.QT, "/autofilterFT", CommonParams.DEBUG_QUERY, "true" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='1']"
+              , "//str[@name='parsedquery']='description_t:cheap'"
+              , "count(//arr[@name='parsed_filter_queries']/str)=2" );
+
+    // the matched fields are ORed with the free text
+    assertQ("", req(CommonParams.Q, "cheap red shoes", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='2']"
+              , "//doc[./str[@name='id']='1']"
+              , "//doc[./str[@name='id']='4']" );
+
+    assertQ("", req(CommonParams.Q, "red shoes", CommonParams.QT, "/autofilterFT" )
+              , "//*[@numFound='2']"
+              , "//doc[./str[@name='id']='1']"
+              , "//doc[./str[@name='id']='4']" );
+  }
+    
+  @Test
+  public void testNativeQueries( ) {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",   "product", "shoes" ));
+    assertU(adoc("id", "2", "color", "Red",   "product", "socks" ));
+    assertU(adoc("id", "3", "color", "brown", "product", "socks" ));
+    assertU(adoc("id", "4", "color", "green", "brand", "red lion",     "product", "socks"));
+    assertU(adoc("id", "5", "color", "blue",  "brand", "green dragon", "product", "socks" ));
+    assertU(adoc("id", "6", "color", "black", "brand", "buster brown", "product", "shoes" ));
+    commitAndWait();
+
+    // the same results as with filter query strings
+    assertQ("", req(CommonParams.Q, "red lion socks", CommonParams.QT, "/autofilterNQ", CommonParams.DEBUG_QUERY, "true" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='4']"
+              , "//str[@name='parsedquery']='MatchAllDocsQuery(*:*)'"
+              , "count(//arr[@name='parsed_filter_queries']/str)=2"
+              , "//arr[@name='parsed_filter_queries']/str='brand:red lion'" );
+
+    // red and Red
+    assertQ("", req(CommonParams.Q, "red socks", CommonParams.QT, "/autofilterNQ" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='2']" );
+
+    assertQ("", req(CommonParams.Q, "brown shoes", CommonParams.QT, "/autofilterNQ" )
+              , "//*[@numFound='0']" );
+
+    // free text left - strings
+    assertQ("", req(CommonParams.Q, "cheap red shoes", CommonParams.QT, "/autofilterNQ", CommonParams.DEBUG_QUERY, "true" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='1']"
+              , "count(//arr[@name='parsed_filter_queries']/str)=0" );
+  }
+    
+  @Test
+  public void testWarmBuild( ) {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",   "product", "shoes" ));
+    assertU(adoc("id", "2", "color", "red",   "product", "socks" ));
+    assertU(adoc("id", "3", "color", "green", "brand", "red lion", "product", "socks"));
+    // no waiting: the warm component builds its field map before the new searcher is registered
+    assertU(commit());
+      
+    assertQ("", req(CommonParams.Q, "red lion socks", CommonParams.QT, "/autofilterWarm" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='3']" );
+      
+    assertU(adoc("id", "4", "color", "blue",  "product", "shirt" ));
+    assertU(commit());
+      
+    assertQ("", req(CommonParams.Q, "blue shirt", CommonParams.QT, "/autofilterWarm" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='4']" );
+  }
+    
+  @Test
+  public void testDocValuesField( ) {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",  "style", "casual", "product", "shirt" ));
+    assertU(adoc("id", "2", "color", "red",  "style", "formal", "product", "shirt" ));
+    assertU(adoc("id", "3", "color", "blue", "style", "casual", "product", "shirt" ));
+    commitAndWait();
+      
+    // style is not indexed - its values are read from the doc values
+    assertQ("", req(CommonParams.Q, "red casual shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='1']" );
+  }
+    
+  @Test
+  public void testMultipleSegments( ) {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",   "product", "shirt" ));
+    assertU(adoc("id", "2", "color", "blue",  "product", "shirt" ));
+    commitAndWait();
+    assertU(adoc("id", "3", "color", "green", "product", "shirt" ));
+    assertU(adoc("id", "4", "color", "red",   "product", "socks" ));
+    commitAndWait();
+
+    // values from the reused first segment and from the new one
+    assertQ("", req(CommonParams.Q, "green shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='3']" );
+    assertQ("", req(CommonParams.Q, "red socks", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='4']" );
+    assertQ("", req(CommonParams.Q, "blue shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='2']" );
+
+    // segments merged away
+    assertU(optimize());
+    commitAndWait();
+    assertQ("", req(CommonParams.Q, "red shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='1']" );
+  }
+
+  @Test
+  public void testUnchangedFieldValues( ) {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",   "product", "shirt", "price_i", "10" ));
+    assertU(adoc("id", "2", "color", "blue",  "product", "shirt", "price_i", "20" ));
+    commitAndWait();
+    QueryAutoFilteringComponent component = (QueryAutoFilteringComponent)h.getCore().getSearchComponent( "autofilter" );
+    FieldValueMap fieldMap = component.getFieldValueMap( );
+
+    // only the price changed - the map is carried forward
+    assertU(adoc("id", "2", "color", "blue",  "product", "shirt", "price_i", "15" ));
+    commitAndWait();
+    assertSame( fieldMap, component.getFieldValueMap( ) );
+    assertQ("", req(CommonParams.Q, "blue shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./int[@name='price_i']='15']" );
+
+    // a new color
+    assertU(adoc("id", "3", "color", "green", "product", "shirt", "price_i", "30" ));
+    commitAndWait();
+    assertNotSame( fieldMap, component.getFieldValueMap( ) );
+    assertQ("", req(CommonParams.Q, "green shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='3']" );
+  }
+
+  @Test
+  public void testUnchangedFieldValuesNotShared( ) {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",   "product", "shirt", "price_i", "10" ));
+    assertU(adoc("id", "2", "color", "blue",  "product", "shirt", "price_i", "20" ));
+    commitAndWait();
+    // shareFieldMap=false - the current map is kept without the registry
+    QueryAutoFilteringComponent component = (QueryAutoFilteringComponent)h.getCore().getSearchComponent( "autofilterWarm" );
+    FieldValueMap fieldMap = component.getFieldValueMap( );
+
+    assertU(adoc("id", "2", "color", "blue",  "product", "shirt", "price_i", "15" ));
+    commitAndWait();
+    assertSame( fieldMap, component.getFieldValueMap( ) );
+
+    assertU(adoc("id", "3", "color", "green", "product", "shirt", "price_i", "30" ));
+    commitAndWait();
+    assertNotSame( fieldMap, component.getFieldValueMap( ) );
+  }
+
+  @Test
+  public void testRequestDuringRebuild( ) {
+    clearIndex();
+    assertU(adoc("id", "1", "color", "red",   "product", "shirt" ));
+    commitAndWait();
+    QueryAutoFilteringComponent component = (QueryAutoFilteringComponent)h.getCore().getSearchComponent( "autofilter" );
+    FieldValueMap fieldMap = component.getFieldValueMap( );
+
+    CountDownLatch resume = new CountDownLatch( 1 );
+    component.blockBuilder( resume );
+    try {
+      assertU(adoc("id", "2", "color", "green", "product", "shirt" ));
+      assertU(commit());
+      // the new searcher is registered but not built yet - requests get the previous map, green is free text
+      assertSame( fieldMap, component.getFieldValueMap( ) );
+      assertQ("", req(CommonParams.Q, "red shirt", CommonParams.QT, "/autofilter", CommonParams.DEBUG_QUERY, "true" )
+                , "//*[@numFound='1']"
+                , "count(//arr[@name='parsed_filter_queries']/str)=2" );
+      assertQ("", req(CommonParams.Q, "green shirt", CommonParams.QT, "/autofilter", CommonParams.DEBUG_QUERY, "true" )
+                , "count(//arr[@name='parsed_filter_queries']/str)=0" );
+    }
+    finally {
+      resume.countDown( );
+    }
+
+    component.waitForFieldMap( );
+    assertNotSame( fieldMap, component.getFieldValueMap( ) );
+    assertQ("", req(CommonParams.Q, "green shirt", CommonParams.QT, "/autofilter", CommonParams.DEBUG_QUERY, "true" )
+              , "//*[@numFound='1']"
+              , "count(//arr[@name='parsed_filter_queries']/str)=2" );
+  }
+
+  @Test
+  public void testRewriteCache( ) {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",   "product", "shirt" ));
+    assertU(adoc("id", "2", "color", "blue",  "product", "shirt" ));
+    commitAndWait();
+    QueryAutoFilteringComponent component = (QueryAutoFilteringComponent)h.getCore().getSearchComponent( "autofilter" );
+    long hits = (Long)component.getStatistics( ).get( "rewriteCacheHits" );
+    long invalidations = (Long)component.getStatistics( ).get( "rewriteCacheInvalidations" );
+
+    assertQ("", req(CommonParams.Q, "red shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='1']" );
+    // same tokens, same rewrite
+    assertQ("", req(CommonParams.Q, " red   shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='1']" );
+    assertEquals( hits + 1, component.getStatistics( ).get( "rewriteCacheHits" ) );
+
+    // a new snapshot drops the rewrites
+    assertU(adoc("id", "3", "color", "green", "product", "shirt" ));
+    commitAndWait();
+    assertEquals( invalidations + 1, component.getStatistics( ).get( "rewriteCacheInvalidations" ) );
+    assertQ("", req(CommonParams.Q, "green shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='3']" );
+    assertQ("", req(CommonParams.Q, "red shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='1']" );
+    assertEquals( hits + 1, component.getStatistics( ).get( "rewriteCacheHits" ) );
+  }
+
+  @Test
+  public void testSharedFieldMap( ) {
+    clearIndex();
+    assertU(adoc("id", "1", "color", "red",   "product", "shirt" ));
+    assertU(adoc("id", "2", "color", "blue",  "product", "socks" ));
+    commitAndWait();
+
+    // same configuration and vocabulary - one map
+    FieldValueMap fieldMap = getFieldValueMap( "autofilter" );
+    assertSame( fieldMap, getFieldValueMap( "autofilterHC" ) );
+    // no synonyms
+    assertNotSame( fieldMap, getFieldValueMap( "autofilterSW" ) );
+    // shareFieldMap=false
+    assertNotSame( fieldMap, getFieldValueMap( "autofilterWarm" ) );
+  }
+
+  private static FieldValueMap getFieldValueMap( String componentName ) {
+    return ((QueryAutoFilteringComponent)h.getCore().getSearchComponent( componentName )).getFieldValueMap( );
+  }
+
+  @Test
+  public void testRebuildOnHardCommit( ) throws Exception {
+    clearIndex();
+    assertU(adoc("id", "1", "color", "red",   "product", "shirt" ));
+    commitAndWait();
+    QueryAutoFilteringComponent component = (QueryAutoFilteringComponent)h.getCore().getSearchComponent( "autofilterHC" );
+    FieldValueMap fieldMap = component.getFieldValueMap( );
+
+    // soft commits don't rebuild the map
+    assertU(adoc("id", "2", "color", "teal",  "product", "shirt" ));
+    assertU(commit( "softCommit", "true" ));
+    component.waitForFieldMap( );
+    assertSame( fieldMap, component.getFieldValueMap( ) );
+
+    commitAndWait();
+    assertNotSame( fieldMap, component.getFieldValueMap( ) );
+    assertNotNull( component.getFieldValueMap( ).lookup( "teal" ) );
+  }
+
+  @Test
+  public void testRebuildDelay( ) throws Exception {
+    clearIndex();
+    assertU(adoc("id", "1", "color", "red",   "product", "shirt" ));
+    commitAndWait();
+    QueryAutoFilteringComponent component = (QueryAutoFilteringComponent)h.getCore().getSearchComponent( "autofilterDelay" );
+    // let the delayed builds of the commits so far run - no build for longer than the delay
+    long builds;
+    do {
+      builds = getBuildCount( component );
+      Thread.sleep( 2000 );
+    } while (getBuildCount( component ) != builds);
+    component.waitForFieldMap( );
+
+    // commits within the delay are coalesced into one build, after the delay
+    assertU(adoc("id", "2", "color", "teal",  "product", "shirt" ));
+    assertU(commit());
+    assertU(adoc("id", "3", "color", "mauve", "product", "shirt" ));
+    assertU(commit());
+    assertU(adoc("id", "4", "color", "ochre", "product", "shirt" ));
+    assertU(commit());
+    assertEquals( builds, getBuildCount( component ) );
+    assertEquals( builds + 1, waitForBuilds( component, builds, 10000 ) );
+    Thread.sleep( 2000 );
+    assertEquals( builds + 1, getBuildCount( component ) );
+    assertTrue( component.getFieldValueMap( ).lookup( "ochre" ) >= 0 );
+    builds = getBuildCount( component );
+
+    // commits that keep coming within the delay don't hold off the build for more than maxStaleness
+    long start = System.currentTimeMillis( );
+    for (int i = 0; System.currentTimeMillis( ) - start < 6000; i++) {
+      assertU(adoc("id", "5", "color", "red",   "product", "shirt", "price_i", Integer.toString( i ) ));
+      assertU(commit());
+      Thread.sleep( 300 );
+    }
+    assertTrue( getBuildCount( component ) > builds );
+  }
+
+  private static long getBuildCount( QueryAutoFilteringComponent component ) {
+    return ((Number)component.getStatistics( ).get( "fieldMapBuilds" )).longValue( );
+  }
+
+  // waits up to timeout ms for a build after the first builds, returns the build count
+  private static long waitForBuilds( QueryAutoFilteringComponent component, long builds, long timeout ) throws Exception {
+    long start = System.currentTimeMillis( );
+    while (getBuildCount( component ) == builds && System.currentTimeMillis( ) - start < timeout) {
+      Thread.sleep( 50 );
+    }
+    component.waitForFieldMap( );
+    return getBuildCount( component );
+  }
+
+  @Test
+  public void testPersistedFieldMap( ) throws Exception {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",   "product", "shirt" ));
+    assertU(adoc("id", "2", "color", "blue",  "product", "shirt" ));
+    commitAndWait();
+
+    // saved after the build that followed the hard commit
+    String[] saved = new File( h.getCore().getDataDir(), "autofilter" ).list( );
+    assertNotNull( saved );
+    boolean found = false;
+    for (String file : saved ) {
+      found |= file.startsWith( "autofilter_autofilter_" );
+    }
+    assertTrue( Arrays.toString( saved ), found );
+
+    // the snapshot of a component named autofilter_x is neither replaced nor loaded by autofilter
+    File other = new File( new File( h.getCore().getDataDir(), "autofilter" ), "autofilter_autofilter_x_1" );
+    Files.write( other.toPath(), new byte[] { 1, 2, 3 } );
+    assertU(adoc("id", "3", "color", "green", "product", "shirt" ));
+    commitAndWait();
+    assertTrue( other.exists() );
+
+    // the reloaded core loads the saved maps with its first searcher - no rebuild to wait for
+    h.reload();
+    assertQ("", req(CommonParams.Q, "blue shirt", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='2']" );
+    assertTrue( other.delete() );
+  }
+
+  @Test
+  public void testParallelBuild( ) throws Exception {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",   "brand", "red lion",     "product", "socks" ));
+    assertU(adoc("id", "2", "color", "green", "brand", "green dragon", "product", "shoes" ));
+    commitAndWait();
+    assertU(adoc("id", "3", "color", "blue",  "material_s", "linen",   "product", "chaise lounge" ));
+    assertU(adoc("id", "4", "color", "Navy",  "style", "casual",       "product", "sofa" ));
+    commitAndWait();
+
+    // autofilter (4 build threads) and autofilterWarm (1 thread) have the same configuration - the saved maps must match
+    File dir = new File( h.getCore().getDataDir(), "autofilter" );
+    File parallel = null;
+    File serial = null;
+    for (File file : dir.listFiles( ) ) {
+      if (file.getName().startsWith( "autofilter_autofilter_" )) parallel = file;
+      if (file.getName().startsWith( "autofilter_autofilterWarm_" )) serial = file;
+    }
+    assertNotNull( parallel );
+    assertNotNull( serial );
+    assertEquals( serial.getName().substring( serial.getName().lastIndexOf( '_' )),
+                  parallel.getName().substring( parallel.getName().lastIndexOf( '_' )));
+    assertTrue( Arrays.equals( Files.readAllBytes( serial.toPath() ), Files.readAllBytes( parallel.toPath() )));
+
+    assertQ("", req(CommonParams.Q, "blue linen chaise lounge", CommonParams.QT, "/autofilter" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='3']" );
+  }
+
+  @Test
+  public void testFieldMapBuilder( ) throws Exception {
+    // same map in memory and when the entries are sorted on disk
+    byte[] inMemory = assertFieldMapBuilder( 1024 * 1024 * 1024 );
+    byte[] sortedOnDisk = assertFieldMapBuilder( 64 * 1024 );
+    assertTrue( Arrays.equals( inMemory, sortedOnDisk ) );
+  }
+
+  @Test
+  public void testFieldMapBuilderWriters( ) throws Exception {
+    // one writer per field on its own thread, spilling - the same map as the fields added one after another
+    byte[] serial = buildFieldMap( 1024 * 1024 * 1024, false );
+    byte[] parallel = buildFieldMap( 64 * 1024, true );
+    assertTrue( Arrays.equals( serial, parallel ) );
+  }
+
+  private byte[] buildFieldMap( long ramBufferBytes, boolean parallel ) throws Exception {
+    try (final FieldMapBuilder builder = new FieldMapBuilder( ramBufferBytes, 4 )) {
+      ArrayList<Thread> threads = new ArrayList<Thread>( );
+      final ArrayList<Throwable> errors = new ArrayList<Throwable>( );
+      for (int f = 0; f < 7; f++) {
+        final FieldMapBuilder.FieldWriter writer = builder.newWriter( );
+        final CharsRef field = new CharsRef( "field" + f );
+        final int fieldNum = f;
+        Thread thread = new Thread( ) {
+          @Override
+          public void run( ) {
+            try {
+              for (int i = 0; i < 10000; i++) {
+                String input = "term" + ((i * 7 + fieldNum) % 9973) + ((i % 3 == 0) ? "s" : "");
+                writer.add( new CharsRef( input ), field, new CharsRef( "Value " + ((i + fieldNum) % 5003) ) );
+              }
+              writer.finish( );
+            }
+            catch ( Throwable t ) {
+              synchronized( errors ) {
+                errors.add( t );
+              }
+            }
+          }
+        };
+        threads.add( thread );
+        thread.start( );
+        if (!parallel) thread.join( );
+      }
+      for (Thread thread : threads ) {
+        thread.join( );
+      }
+      assertTrue( errors.toString( ), errors.isEmpty( ) );
+      builder.build( );
+
+      FieldValueMap fieldMap = builder.getFieldValueMap( );
+      assertEquals( 7, fieldMap.fieldNames.length );
+      RAMOutputStream out = new RAMOutputStream( );
+      fieldMap.save( out );
+      byte[] bytes = new byte[ (int)out.getFilePointer( ) ];
+      out.writeTo( bytes, 0 );
+      return bytes;
+    }
+  }
+
+  @Test
+  public void testQueryValues( ) throws Exception {
+    assertEquals( "chaise", FieldMapOutputs.getQueryValue( "chaise" ) );
+    assertEquals( "\"chaise lounge\"", FieldMapOutputs.getQueryValue( "chaise lounge" ) );
+    assertEquals( "\"chaise lounge\"", FieldMapOutputs.getQueryValue( "chaise_lounge" ) );
+    assertEquals( "AT\\&T", FieldMapOutputs.getQueryValue( "AT&T" ) );
+    assertEquals( "\"12\\\" vinyl\"", FieldMapOutputs.getQueryValue( "12\" vinyl" ) );
+  }
+
+  private byte[] assertFieldMapBuilder( long ramBufferBytes ) throws Exception {
+    LinkedHashMap<String,LinkedHashSet<String>> expectedFields = new LinkedHashMap<String,LinkedHashSet<String>>( );
+    LinkedHashMap<String,LinkedHashSet<String>> expectedValues = new LinkedHashMap<String,LinkedHashSet<String>>( );
+    try (FieldMapBuilder builder = new FieldMapBuilder( ramBufferBytes )) {
+      for (int i = 0; i < 40000; i++) {
+        String input = "term" + (i % 9973) + ((i % 3 == 0) ? "s" : "");
+        String field = "field" + (i % 7);
+        String value = "Value " + (i % 5003);
+        addExpected( expectedFields, input, field );
+        addExpected( expectedValues, input, value );
+        builder.add( new CharsRef( input ), new CharsRef( field ), new CharsRef( value ) );
+      }
+      builder.build( );
+      FieldValueMap fieldMap = builder.getFieldValueMap( );
+      assertEquals( 5003, fieldMap.getNumValues( ) );
+      FieldMapOutputs outputs = fieldMap.getOutputs( "," );
+      assertSame( outputs, fieldMap.getOutputs( "," ) );
+      for (String input : expectedFields.keySet( ) ) {
+        int ord = fieldMap.lookup( input );
+        assertTrue( input, ord >= 0 );
+        assertEquals( join( expectedFields.get( input ) ), fieldMap.getFieldNames( ord, "," ) );
+        assertEquals( join( expectedValues.get( input ) ), fieldMap.getValues( ord, "," ) );
+        assertEquals( join( expectedFields.get( input ) ), outputs.getFieldKey( ord ) );
+        assertEquals( expectedFields.get( input ).size( ), outputs.getFieldOrds( ord ).length );
+        String[] values = outputs.getValues( ord );
+        assertEquals( expectedValues.get( input ).size( ), values.length );
+        assertEquals( values.length > 1, outputs.isMultiValued( ord ) );
+        int v = 0;
+        for (String value : expectedValues.get( input ) ) {
+          assertEquals( value, outputs.getIndexedValues( ord )[v] );
+          assertEquals( "\"" + value + "\"", values[v++] );
+        }
+      }
+      assertEquals( -1, fieldMap.lookup( "term" ) );
+      assertEquals( -1, fieldMap.lookup( "term1x" ) );
+
+      RAMOutputStream out = new RAMOutputStream( );
+      fieldMap.save( out );
+      byte[] bytes = new byte[ (int)out.getFilePointer( ) ];
+      out.writeTo( bytes, 0 );
+      return bytes;
+    }
+  }
+
+  @Test
+  public void testCopyQuery( ) {
+    BooleanQuery colors = new BooleanQuery( );
+    colors.add( new TermQuery( new Term( "color", "red" ) ), BooleanClause.Occur.SHOULD );
+    colors.add( new TermQuery( new Term( "color", "blue" ) ), BooleanClause.Occur.SHOULD );
+    BooleanQuery query = new BooleanQuery( true );
+    query.add( colors, BooleanClause.Occur.MUST );
+    query.add( new TermQuery( new Term( "product", "shirt" ) ), BooleanClause.Occur.MUST );
+
+    // a request that changes its copy leaves the cached query alone
+    Query copy = QueryAutoFilteringComponent.copyQuery( query );
+    assertEquals( query, copy );
+    Query nested = ((BooleanQuery)copy).clauses( ).get( 0 ).getQuery( );
+    assertNotSame( colors, nested );
+    nested.setBoost( 2.0f );
+    ((BooleanQuery)nested).clauses( ).get( 1 ).getQuery( ).setBoost( 3.0f );
+    assertEquals( 1.0f, colors.getBoost( ), 0.0f );
+    assertEquals( 1.0f, colors.clauses( ).get( 1 ).getQuery( ).getBoost( ), 0.0f );
+    assertFalse( query.equals( copy ) );
+  }
+
+  @Test
+  public void testPhraseMatcher( ) throws Exception {
+    try (FieldMapBuilder builder = new FieldMapBuilder( 1024 * 1024 )) {
+      builder.add( new CharsRef( "new" ), new CharsRef( "brand" ), new CharsRef( "New" ) );
+      builder.add( new CharsRef( "new_york_city" ), new CharsRef( "city" ), new CharsRef( "New York City" ) );
+      builder.add( new CharsRef( "sock" ), new CharsRef( "product" ), new CharsRef( "sock" ) );
+      builder.build( );
+      FieldValueMap fieldMap = builder.getFieldValueMap( );
+      PhraseMatcher matcher = fieldMap.acquireMatcher( );
+
+      // longest match, past "new york" which is not in the map
+      QueryTokens tokens = tokens( "New", "York", "City", "socks" );
+      assertEquals( 2, matcher.match( tokens, 0 ) );
+      assertEquals( "New York City", fieldMap.getValues( matcher.getOrd( ), "," ) );
+      assertEquals( -1, matcher.match( tokens, 1 ) );
+      // stemmed last token
+      assertEquals( 3, matcher.match( tokens, 3 ) );
+      assertEquals( "product", fieldMap.getFieldNames( matcher.getOrd( ), "," ) );
+
+      tokens = tokens( "new", "york", "socks" );
+      assertEquals( 0, matcher.match( tokens, 0 ) );
+      assertEquals( "brand", fieldMap.getFieldNames( matcher.getOrd( ), "," ) );
+
+      char[] buffer = "find new york city".toCharArray( );
+      assertEquals( -1, matcher.lookup( buffer, 5, 8 ) );
+      assertEquals( "city", fieldMap.getFieldNames( matcher.lookup( buffer, 5, 13 ), "," ) );
+
+      // released matchers are reused, matchers in use are not shared
+      fieldMap.releaseMatcher( matcher );
+      assertSame( matcher, fieldMap.acquireMatcher( ) );
+      assertNotSame( matcher, fieldMap.acquireMatcher( ) );
+    }
+  }
+
+  @Test
+  public void testPhraseMatcherAllocations( ) throws Exception {
+    ThreadMXBean threadBean = (ThreadMXBean)ManagementFactory.getThreadMXBean( );
+    assumeTrue( "no thread allocation counter", threadBean.isThreadAllocatedMemorySupported( ) );
+    threadBean.setThreadAllocatedMemoryEnabled( true );
+
+    try (FieldMapBuilder builder = new FieldMapBuilder( 1024 * 1024 )) {
+      for (int i = 0; i < 1000; i++) {
+        builder.add( new CharsRef( "value_" + i ), new CharsRef( "field" + (i % 3) ), new CharsRef( "Value " + i ) );
+      }
+      builder.build( );
+      FieldValueMap fieldMap = builder.getFieldValueMap( );
+      QueryTokens tokens = tokens( "Value", "500s", "value", "7" );
+      char[] buffer = "value 999".toCharArray( );
+
+      // warm up, so the measured lookups run compiled
+      int found = 0;
+      for (int i = 0; i < 20000; i++) {
+        found += lookup( fieldMap, tokens, buffer );
+      }
+      long threadId = Thread.currentThread( ).getId( );
+      long before = threadBean.getThreadAllocatedBytes( threadId );
+      for (int i = 0; i < 10000; i++) {
+        found += lookup( fieldMap, tokens, buffer );
+      }
+      long allocated = threadBean.getThreadAllocatedBytes( threadId ) - before;
+      assertEquals( 30000 * 3, found );
+      // less than a byte per lookup: only the measurement itself allocates
+      assertTrue( "lookups allocated " + allocated + " bytes", allocated < 10000 );
+    }
+  }
+
+  private static int lookup( FieldValueMap fieldMap, QueryTokens tokens, char[] buffer ) throws Exception {
+    PhraseMatcher matcher = fieldMap.acquireMatcher( );
+    int found = 0;
+    if (matcher.match( tokens, 0 ) == 1 && matcher.getOrd( ) >= 0) ++found;
+    if (matcher.match( tokens, 2 ) == 3 && matcher.getOrd( ) >= 0) ++found;
+    if (matcher.lookup( buffer, 0, buffer.length ) >= 0) ++found;
+    fieldMap.releaseMatcher( matcher );
+    return found;
+  }
+
+  private static QueryTokens tokens( String... tokens ) {
+    QueryTokens queryTokens = new QueryTokens( );
+    for (String token : tokens ) {
+      queryTokens.add( token.toCharArray( ), token.length( ) );
+    }
+    return queryTokens;
+  }
+
+  private static void addExpected( LinkedHashMap<String,LinkedHashSet<String>> expected, String input, String output ) {
+    LinkedHashSet<String> outputs = expected.get( input );
+    if (outputs == null) {
+      outputs = new LinkedHashSet<String>( );
+      expected.put( input, outputs );
+    }
+    outputs.add( output );
+  }
+
+  private static String join( LinkedHashSet<String> outputs ) {
+    StringBuilder strb = new StringBuilder( );
+    for (String output : outputs ) {
+      if (strb.length( ) > 0) strb.append( "," );
+      strb.append( output );
+    }
+    return strb.toString( );
+  }
+
   @Test
   public void testSynonyms( ) {
     clearIndex();
@@ -78,7 +741,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "1", "color", "red",   "product", "chaise lounge" ));
     assertU(adoc("id", "2", "color", "red",   "product", "sofa" ));
     assertU(adoc("id", "3", "color", "red",   "product", "chair" ));
-    assertU(commit());
+    commitAndWait();
       
     assertQ("", req(CommonParams.Q, "red couch", CommonParams.QT, "/autofilter" )
               , "//*[@numFound='1']"
@@ -99,6 +762,15 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
       assertQ("", req(CommonParams.Q, "crimson day bed", CommonParams.QT, "/autofilter" )
               , "//*[@numFound='1']"
               , "//doc[./str[@name='id']='1']" );
+
+    // synonyms, word order and repeated values give the same filters, in the same order
+    for (String q : new String[] { "red couch", "rouge sofa", "couch scarlet", "red sofa crimson" } ) {
+      assertQ(q, req(CommonParams.Q, q, CommonParams.QT, "/autofilter", CommonParams.DEBUG_QUERY, "true" )
+                , "//*[@numFound='1']"
+                , "count(//arr[@name='parsed_filter_queries']/str)=2"
+                , "//arr[@name='parsed_filter_queries']/str[1]='color:red'"
+                , "//arr[@name='parsed_filter_queries']/str[2]='product:sofa'" );
+    }
   }
     
   @Test
@@ -111,7 +783,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "4", "color", "green", "brand", "Red Lion",     "product", "socks"));
     assertU(adoc("id", "5", "color", "blue",  "brand", "Green Dragon", "product", "socks" ));
     assertU(adoc("id", "6", "color", "black", "brand", "Buster Brown", "product", "shoes" ));
-    assertU(commit());
+    commitAndWait();
       
     assertQ("", req(CommonParams.Q, "red lion socks", CommonParams.QT, "/autofilter" )
               , "//*[@numFound='1']"
@@ -129,7 +801,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "1", "color", "red",   "product", "Chaise Lounge" ));
     assertU(adoc("id", "2", "color", "red",   "product", "sofa" ));
     assertU(adoc("id", "3", "color", "red",   "product", "chair" ));
-    assertU(commit());
+    commitAndWait();
         
     assertQ("", req(CommonParams.Q, "red lounge chair", CommonParams.QT, "/autofilter" )
               , "//*[@numFound='1']"
@@ -154,7 +826,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "2", "color", "red",   "product", "socks" ));
     assertU(adoc("id", "3", "color", "red",   "product", "pants" ));
     assertU(adoc("id", "4", "color", "red",   "product", "sofa" ));
-    assertU(commit());
+    commitAndWait();
       
     assertQ("", req(CommonParams.Q, "red shirts", CommonParams.QT, "/autofilter" )
               , "//*[@numFound='1']"
@@ -177,7 +849,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "2", "color", "red",   "product", "socks" ));
     assertU(adoc("id", "3", "color", "green", "brand", "red lion",  "product", "socks"));
     assertU(adoc("id", "4", "brand", "red label",  "product", "whiskey"));
-    assertU(commit());
+    commitAndWait();
       
     assertQ("", req(CommonParams.Q, "red", CommonParams.QT, "/autofilter" )
             , "//*[@numFound='2']"
@@ -211,7 +883,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc( "id", "12", "brand", "heinz", "product", "red wine vinegar" ));
     assertU(adoc( "id", "13", "brand", "dole",  "product", "red grapes" ));
     assertU(adoc( "id", "14", "brand", "acme",  "product", "red brick" ));
-    assertU(commit());
+    commitAndWait();
       
     assertQ("", req(CommonParams.Q, "blue red dragon socks", CommonParams.QT, "/autofilterBQ", "rows", "20" )
               , "//*[@numFound='14']"
@@ -240,7 +912,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "2", "color", "red",   "product", "socks" ));
     assertU(adoc("id", "3", "color", "green", "brand", "red lion",  "product", "socks"));
     assertU(adoc("id", "4", "brand", "red label",  "product", "whiskey"));
-    assertU(commit());
+    commitAndWait();
       
     assertQ("", req(CommonParams.Q, "1", CommonParams.QT, "/autofilter" )
               , "//*[@numFound='1']"
@@ -261,7 +933,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "3", "color", "green", "brand", "red lion",     "product", "socks"));
     assertU(adoc("id", "4", "color", "red",   "brand", "calvin klein", "product", "underwear"));
     assertU(adoc("id", "5", "color", "red",   "brand", "fruit of the loom", "product", "underwear"));
-    assertU(commit());
+    commitAndWait();
       
     assertQ("", req(CommonParams.Q, "red calvin klein underwear", CommonParams.QT, "/autofilter" )
               , "//*[@numFound='1']"
@@ -278,6 +950,24 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
               , "//doc[./str[@name='id']='5']");
   }
     
+  @Test
+  public void testQueryAnalyzer( ) {
+    clearIndex();
+    assertU(commit());
+    assertU(adoc("id", "1", "color", "red",   "product", "t-shirt" ));
+    assertU(adoc("id", "2", "color", "red",   "product", "shirt" ));
+    assertU(adoc("id", "3", "color", "blue",  "product", "t-shirt" ));
+    commitAndWait();
+
+    // the whitespace tokenizer keeps "t-shirt" in one token
+    assertQ("", req(CommonParams.Q, "red t-shirt", CommonParams.QT, "/autofilterQA" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='1']" );
+    assertQ("", req(CommonParams.Q, "Blue T-Shirt", CommonParams.QT, "/autofilterQC" )
+              , "//*[@numFound='1']"
+              , "//doc[./str[@name='id']='3']" );
+  }
+    
   @Test
   public void testRandomOrder( ) {
     clearIndex();
@@ -286,7 +976,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "2", "color", "red",   "product", "socks" ));
     assertU(adoc("id", "3", "color", "green", "brand", "red lion",  "product", "socks"));
     assertU(adoc("id", "4", "brand", "red label",  "product", "whiskey"));
-    assertU(commit());
+    commitAndWait();
       
     assertQ("", req(CommonParams.Q, "red lion socks", CommonParams.QT, "/autofilter" )
               , "//*[@numFound='1']"
@@ -306,7 +996,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "3", "color", "green", "brand", "red lion",  "product", "socks"));
     assertU(adoc("id", "4", "brand", "red label",  "product", "whiskey"));
     assertU(adoc("id", "5", "color", "blue",  "brand", "green dragon", "product", "socks"));
-    assertU(commit());
+    commitAndWait();
       
     // green red tiger socks -> tiger (color:(green OR red) AND product:socks)
     assertQ("", req(CommonParams.Q, "green red tiger socks", CommonParams.QT, "/autofilter" )
@@ -329,7 +1019,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     assertU(adoc("id", "3", "color", "green", "brand", "red lion",  "product", "socks"));
     assertU(adoc("id", "4", "brand", "red label",  "product", "whiskey"));
     assertU(adoc("id", "5", "color", "blue",  "brand", "green dragon", "product", "socks"));
-    assertU(commit());
+    commitAndWait();
       
     // should create filter  query: color:(red OR green) product:socks
     assertQ("", req(CommonParams.Q, "red green socks", CommonParams.QT, "/autofilter" )
@@ -346,7 +1036,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     //assertU(adoc("id", "2", "first_name", "Thomas", "last_name", "Tucker", "full_name", "Thomas Tucker"));
     assertU(adoc("id", "1", "full_name", "Tucker Thomas", "text", "Tucker Thomas"));
     assertU(adoc("id", "2", "full_name", "Thomas Tucker", "text", "Thomas Tucker"));
-    assertU(commit());
+    commitAndWait();
         
     // should create filter query (first_name:thomas OR last_name:thomas)
     assertQ("", req(CommonParams.Q, "Thomas", CommonParams.QT, "/autofilter" )
@@ -364,7 +1054,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     clearIndex();
     assertU(commit());
     assertU( multiValueDocs );
-    assertU(commit());
+    commitAndWait();
         
     assertQ("", req(CommonParams.Q, "fast stylish", CommonParams.QT, "/autofilter" )
               , "//*[@numFound='1']" );
@@ -381,7 +1071,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     clearIndex();
     assertU(commit());
     assertU( whiteAmbiguousDocs );
-    assertU(commit());
+    commitAndWait();
         
     // should create (brand_s:"white linen" OR (color:white AND material_s:linen))
     assertQ("", req(CommonParams.Q, "white linen", CommonParams.QT, "/autofilter" )
@@ -404,7 +1094,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     clearIndex();
     assertU(commit());
     assertU( musicDocs );
-    assertU(commit());
+    commitAndWait();
         
     assertQ("", req(CommonParams.Q, "Bob Dylan Songs", CommonParams.QT, "/autofilterVRB" )
               , "//*[@numFound='3']" );
@@ -425,7 +1115,7 @@ public class QueryAutoFilteringComponentTest  extends SolrTestCaseJ4 {
     clearIndex();
     assertU(commit());
     assertU( beatlesDocs );
-    assertU(commit());
+    commitAndWait();
         
     assertQ("", req(CommonParams.Q, "Beatles Songs", CommonParams.QT, "/autofilterVRB" )
               , "//*[@numFound='3']" );